@@ -0,0 +1,46 @@
+package callgraph
+
+import com.intellij.openapi.progress.ProgressIndicator
+import java.util.concurrent.atomic.AtomicInteger
+
+// Progress of a single build. Workers only bump a counter, the tool window samples it on the EDT at a fixed rate, so
+// the number of UI updates does not grow with the size of the project.
+class BuildProgress(private val progressIndicator: ProgressIndicator?) {
+    enum class Stage(val label: String) {
+        EXTRACT("Extracting calls"),
+        ENUMERATE("Collecting functions in scope"),
+        SEARCH("Searching calls"),
+        LAYOUT("Laying out graph")
+    }
+
+    private val processedCount = AtomicInteger()
+    @Volatile var stage = Stage.ENUMERATE
+        private set
+
+    fun startStage(stage: Stage) {
+        this.stage = stage
+        this.processedCount.set(0)
+        this.progressIndicator?.let {
+            it.isIndeterminate = true
+            it.text = "Call Graph: ${stage.label}"
+            it.text2 = ""
+        }
+    }
+
+    fun increment() {
+        this.processedCount.incrementAndGet()
+    }
+
+    fun getProcessedCount() = this.processedCount.get()
+
+    fun getText(): String {
+        val processedCount = getProcessedCount()
+        return if (processedCount == 0) this.stage.label else "${this.stage.label}: $processedCount functions processed"
+    }
+
+    // called by the sampling timer, so the platform indicator is refreshed at the same rate as the tool window
+    fun updateIndicator() {
+        val processedCount = getProcessedCount()
+        this.progressIndicator?.text2 = if (processedCount == 0) "" else "$processedCount functions processed"
+    }
+}
@@ -0,0 +1,92 @@
+package callgraph
+
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.project.Project
+import com.intellij.util.Alarm
+
+// Runs one call graph build at a time. Requests arriving while a build is pending or running supersede it: only the
+// latest one is kept, the running build is cancelled, and a result is only applied if no newer request came in since.
+// All methods are called on the EDT.
+class BuildScheduler(project: Project, private val canvasBuilder: CanvasBuilder) {
+    companion object {
+        // absorbs double-clicks and rapid toggling between build types
+        private const val debounceMillis = 150
+    }
+
+    private class BuildRequest(
+            val version: Int,
+            val canvasConfig: CanvasConfig,
+            val displayedGraph: Graph?,
+            val onBuilt: (CanvasBuilder.Result) -> Unit,
+            val onFailed: () -> Unit
+    )
+
+    // disposed along with the project, so no debounced build is started after it is closed
+    private val alarm = Alarm(Alarm.ThreadToUse.SWING_THREAD, project)
+    private var latestVersion = 0
+    private var pendingRequest: BuildRequest? = null
+    private var runningIndicator: ProgressIndicator? = null
+    private var isBuildRunning = false
+
+    // the displayed graph is only read by the build, it is not changed until its result is applied on the EDT. Either
+    // callback is only called for the latest request, onFailed when its build threw or was cancelled from the UI.
+    fun schedule(
+            canvasConfig: CanvasConfig,
+            displayedGraph: Graph?,
+            onBuilt: (CanvasBuilder.Result) -> Unit,
+            onFailed: () -> Unit
+    ) {
+        this.latestVersion++
+        this.pendingRequest = BuildRequest(this.latestVersion, canvasConfig, displayedGraph, onBuilt, onFailed)
+        // the running build checks the indicator between methods, and winds down on its own
+        this.runningIndicator?.cancel()
+        this.alarm.cancelAllRequests()
+        this.alarm.addRequest({ startPendingRequest() }, debounceMillis)
+    }
+
+    private fun startPendingRequest() {
+        // a cancelled build still owns the canvas builder until it has wound down, it starts the next one when done
+        if (this.isBuildRunning) {
+            return
+        }
+        val request = this.pendingRequest ?: return
+        this.pendingRequest = null
+        this.isBuildRunning = true
+        Utils.runBackgroundTask(
+                request.canvasConfig.project,
+                { progressIndicator ->
+                    ApplicationManager.getApplication().invokeAndWait {
+                        if (isCurrent(request)) this.runningIndicator = progressIndicator else progressIndicator.cancel()
+                    }
+                    val result = try {
+                        progressIndicator.checkCanceled()
+                        this.canvasBuilder.build(request.canvasConfig, request.displayedGraph)
+                    } catch (e: Throwable) {
+                        ApplicationManager.getApplication().invokeLater {
+                            if (isCurrent(request)) {
+                                request.onFailed()
+                            }
+                        }
+                        throw e
+                    }
+                    ApplicationManager.getApplication().invokeLater {
+                        // a newer request came in while building, so this result is already stale
+                        if (isCurrent(request)) {
+                            request.onBuilt(result)
+                        }
+                    }
+                },
+                {
+                    this.runningIndicator = null
+                    this.isBuildRunning = false
+                    // if the debounce of a newer request is still ticking, it starts the build itself
+                    if (this.alarm.isEmpty) {
+                        startPendingRequest()
+                    }
+                }
+        )
+    }
+
+    private fun isCurrent(request: BuildRequest) = request.version == this.latestVersion
+}
@@ -0,0 +1,101 @@
+package callgraph
+
+import gnu.trove.TIntArrayList
+import java.util.*
+
+// Compressed sparse row adjacency of the call graph, indexed by method id. The callees of method i are
+// forwardTargets[forwardOffsets[i] until forwardOffsets[i + 1]], and the callers likewise in the reverse arrays.
+class CallGraphAdjacency(methodCount: Int, edgeArrays: Collection<LongArray>) {
+    private val forwardOffsets = IntArray(methodCount + 1)
+    private val forwardTargets: IntArray
+    private val reverseOffsets = IntArray(methodCount + 1)
+    private val reverseTargets: IntArray
+
+    init {
+        // count the out- and in-degree of every method, then turn the counts into offsets
+        var edgeCount = 0
+        edgeArrays.forEach { edges ->
+            edges.forEach {
+                this.forwardOffsets[MethodSymbolTable.getCallerId(it) + 1]++
+                this.reverseOffsets[MethodSymbolTable.getCalleeId(it) + 1]++
+            }
+            edgeCount += edges.size
+        }
+        for (id in 0 until methodCount) {
+            this.forwardOffsets[id + 1] += this.forwardOffsets[id]
+            this.reverseOffsets[id + 1] += this.reverseOffsets[id]
+        }
+        // fill in the targets, using a copy of the offsets as the insert position of each method
+        this.forwardTargets = IntArray(edgeCount)
+        this.reverseTargets = IntArray(edgeCount)
+        val forwardPositions = this.forwardOffsets.copyOf()
+        val reversePositions = this.reverseOffsets.copyOf()
+        edgeArrays.forEach { edges ->
+            edges.forEach {
+                val callerId = MethodSymbolTable.getCallerId(it)
+                val calleeId = MethodSymbolTable.getCalleeId(it)
+                this.forwardTargets[forwardPositions[callerId]++] = calleeId
+                this.reverseTargets[reversePositions[calleeId]++] = callerId
+            }
+        }
+    }
+
+    // Breadth-first traversal from the root methods, over callers if upstream or callees otherwise. Reports every
+    // edge followed as (caller id, callee id). Once the node budget is used up, only edges between methods already
+    // reached are reported. Methods with neighbors left unexplored by the depth limit or the budget are reported as
+    // truncated, possibly more than once.
+    fun traverse(
+            rootIds: IntArray,
+            isUpstream: Boolean,
+            depthLimit: Int,
+            nodeBudget: Int,
+            onEdge: (Int, Int) -> Unit,
+            onTruncated: (Int) -> Unit
+    ) {
+        val offsets = if (isUpstream) this.reverseOffsets else this.forwardOffsets
+        val targets = if (isUpstream) this.reverseTargets else this.forwardTargets
+        val visited = BitSet(offsets.size - 1)
+        var visitedCount = 0
+        var frontier = TIntArrayList(rootIds.size)
+        rootIds.forEach {
+            if (!visited.get(it)) {
+                visited.set(it)
+                visitedCount++
+                frontier.add(it)
+            }
+        }
+        var nextFrontier = TIntArrayList()
+        var depth = 0
+        while (!frontier.isEmpty() && depth < depthLimit) {
+            for (index in 0 until frontier.size()) {
+                val id = frontier.getQuick(index)
+                for (position in offsets[id] until offsets[id + 1]) {
+                    val neighborId = targets[position]
+                    if (!visited.get(neighborId)) {
+                        if (visitedCount >= nodeBudget) {
+                            onTruncated(id)
+                            continue
+                        }
+                        visited.set(neighborId)
+                        visitedCount++
+                        nextFrontier.add(neighborId)
+                    }
+                    if (isUpstream) onEdge(neighborId, id) else onEdge(id, neighborId)
+                }
+            }
+            // swap the frontiers, reusing their arrays
+            val previousFrontier = frontier
+            frontier = nextFrontier
+            nextFrontier = previousFrontier
+            nextFrontier.resetQuick()
+            depth++
+        }
+        // the frontier left behind by the depth limit, which is only cut off where it leads to nodes not reached yet
+        for (index in 0 until frontier.size()) {
+            val id = frontier.getQuick(index)
+            if ((offsets[id] until offsets[id + 1]).any { !visited.get(targets[it]) }) {
+                onTruncated(id)
+            }
+        }
+    }
+}
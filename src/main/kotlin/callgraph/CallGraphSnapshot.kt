@@ -0,0 +1,261 @@
+package callgraph
+
+import com.intellij.util.io.ByteBufferUtil
+import java.io.*
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+
+// Read-only view of a call graph snapshot file, which is memory-mapped, so only the parts being looked up are paged
+// in and decoded. A mapped file cannot be replaced on Windows while the mapping is alive, so it is closed first.
+//
+// Layout (big endian):
+//   magic, version
+//   string count, string offsets (count + 1 entries), UTF-8 string data
+//   file count, file records sorted by path (path id, content hash id, edge data offset, edge count, flags)
+//   edge data length, edge data
+// Method keys, file paths and content hashes all live in the string table, so a method id is its string id.
+// The edges of a file are sorted by (caller id, callee id) and stored as varints: the caller as a delta to the
+// previous caller, the callee as a delta to the previous callee when the caller repeats, or as is otherwise.
+class CallGraphSnapshot private constructor(private val buffer: ByteBuffer) : Closeable {
+    companion object {
+        private const val magic = 0x4347534e // "CGSN"
+        private const val version = 2
+        private const val fileRecordSize = 20
+        private const val hasUnresolvedCallsFlag = 1
+
+        fun open(file: File): CallGraphSnapshot? {
+            if (!file.isFile) {
+                return null
+            }
+            return try {
+                val buffer = FileChannel.open(file.toPath(), StandardOpenOption.READ).use {
+                    // the mapping stays valid once the channel is closed
+                    it.map(FileChannel.MapMode.READ_ONLY, 0, it.size())
+                }
+                try {
+                    CallGraphSnapshot(buffer)
+                } catch (e: RuntimeException) {
+                    ByteBufferUtil.cleanBuffer(buffer)
+                    throw e
+                }
+            } catch (e: IOException) {
+                null
+            } catch (e: IllegalArgumentException) { // corrupted file, or a snapshot of another version
+                null
+            } catch (e: IndexOutOfBoundsException) {
+                null
+            }
+        }
+    }
+
+    private val stringCount: Int
+    private val stringOffsetsStart: Int
+    private val stringDataStart: Int
+    val fileCount: Int
+    private val fileRecordsStart: Int
+    private val edgeDataStart: Int
+    private val edgeDataEnd: Int
+
+    init {
+        // every offset is checked up front, so lookups never read outside of their section
+        require(this.buffer.getInt(0) == magic && this.buffer.getInt(4) == version)
+        this.stringCount = this.buffer.getInt(8)
+        require(this.stringCount >= 0 && this.stringCount < this.buffer.limit() / 4)
+        this.stringOffsetsStart = 12
+        this.stringDataStart = this.stringOffsetsStart + 4 * (this.stringCount + 1)
+        var previousStringOffset = 0
+        for (stringId in 0..this.stringCount) {
+            val stringOffset = this.buffer.getInt(this.stringOffsetsStart + 4 * stringId)
+            require(stringOffset >= previousStringOffset && stringOffset <= this.buffer.limit() - this.stringDataStart)
+            previousStringOffset = stringOffset
+        }
+        val fileCountPosition = this.stringDataStart + previousStringOffset
+        this.fileCount = this.buffer.getInt(fileCountPosition)
+        require(this.fileCount >= 0 && this.fileCount < this.buffer.limit() / fileRecordSize)
+        this.fileRecordsStart = fileCountPosition + 4
+        val edgeDataLengthPosition = this.fileRecordsStart + fileRecordSize * this.fileCount
+        this.edgeDataStart = edgeDataLengthPosition + 4
+        val edgeDataLength = this.buffer.getInt(edgeDataLengthPosition)
+        require(edgeDataLength >= 0 && edgeDataLength <= this.buffer.limit() - this.edgeDataStart)
+        this.edgeDataEnd = this.edgeDataStart + edgeDataLength
+        for (fileIndex in 0 until this.fileCount) {
+            require(getFileRecordField(fileIndex, 0) in 0 until this.stringCount)
+            require(getFileRecordField(fileIndex, 1) in 0 until this.stringCount)
+            require(getFileRecordField(fileIndex, 2) in 0..edgeDataLength)
+            require(getFileRecordField(fileIndex, 3) >= 0)
+        }
+    }
+
+    // Releases the mapping right away instead of whenever the buffer is collected. The snapshot must not be read
+    // anymore after that.
+    override fun close() {
+        ByteBufferUtil.cleanBuffer(this.buffer)
+    }
+
+    fun getString(stringId: Int): String {
+        val start = this.buffer.getInt(this.stringOffsetsStart + 4 * stringId)
+        val end = this.buffer.getInt(this.stringOffsetsStart + 4 * (stringId + 1))
+        val bytes = ByteArray(end - start)
+        val view = this.buffer.duplicate()
+        view.position(this.stringDataStart + start)
+        view.get(bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+
+    fun findFile(path: String): Int {
+        // binary search over the file records, which are sorted by path
+        var low = 0
+        var high = this.fileCount - 1
+        while (low <= high) {
+            val middle = (low + high).ushr(1)
+            val comparison = getPath(middle).compareTo(path)
+            when {
+                comparison < 0 -> low = middle + 1
+                comparison > 0 -> high = middle - 1
+                else -> return middle
+            }
+        }
+        return -1
+    }
+
+    fun getPath(fileIndex: Int) = getString(getFileRecordField(fileIndex, 0))
+
+    fun getContentHash(fileIndex: Int) = getString(getFileRecordField(fileIndex, 1))
+
+    fun hasUnresolvedCalls(fileIndex: Int) = getFileRecordField(fileIndex, 4) and hasUnresolvedCallsFlag != 0
+
+    // Throws an IllegalStateException when the edge data of the file turns out to be corrupted.
+    fun forEachEdge(fileIndex: Int, consumer: (Int, Int) -> Unit) {
+        val view = this.buffer.duplicate()
+        view.limit(this.edgeDataEnd)
+        view.position(this.edgeDataStart + getFileRecordField(fileIndex, 2))
+        val edgeCount = getFileRecordField(fileIndex, 3)
+        var callerId = 0
+        var calleeId = 0
+        repeat(edgeCount) { index ->
+            val callerDelta: Int
+            val calleeValue: Int
+            try {
+                callerDelta = readVarInt(view)
+                calleeValue = readVarInt(view)
+            } catch (e: BufferUnderflowException) {
+                throw IllegalStateException("Edge data of file $fileIndex runs past the end of the snapshot")
+            }
+            calleeId = if (index > 0 && callerDelta == 0) calleeId + calleeValue else calleeValue
+            callerId += callerDelta
+            check(callerId in 0 until this.stringCount && calleeId in 0 until this.stringCount) {
+                "Edge of file $fileIndex refers to an unknown method"
+            }
+            consumer(callerId, calleeId)
+        }
+    }
+
+    private fun getFileRecordField(fileIndex: Int, field: Int) =
+            this.buffer.getInt(this.fileRecordsStart + fileRecordSize * fileIndex + 4 * field)
+
+    private fun readVarInt(view: ByteBuffer): Int {
+        var value = 0
+        var shift = 0
+        while (true) {
+            val byte = view.get().toInt()
+            value = value or ((byte and 0x7f) shl shift)
+            if (byte and 0x80 == 0) {
+                return value
+            }
+            shift += 7
+        }
+    }
+
+    class Writer {
+        private val stringIds = mutableMapOf<String, Int>()
+        private val strings = mutableListOf<String>()
+        private val fileRecords = mutableListOf<Pair<String, IntArray>>()
+        private val edgeData = ByteArrayOutputStream()
+
+        fun clear() {
+            this.stringIds.clear()
+            this.strings.clear()
+            this.fileRecords.clear()
+            this.edgeData.reset()
+        }
+
+        fun addFile(
+                path: String,
+                contentHash: String,
+                hasUnresolvedCalls: Boolean,
+                edges: Collection<Pair<String, String>>
+        ) {
+            val edgeIds = edges
+                    .map { (callerKey, calleeKey) -> intern(callerKey) to intern(calleeKey) }
+                    .distinct()
+                    .sortedWith(compareBy({ it.first }, { it.second }))
+            val edgeOffset = this.edgeData.size()
+            var previousCallerId = 0
+            var previousCalleeId = 0
+            edgeIds.forEachIndexed { index, (callerId, calleeId) ->
+                val isSameCaller = index > 0 && callerId == previousCallerId
+                writeVarInt(callerId - previousCallerId)
+                writeVarInt(if (isSameCaller) calleeId - previousCalleeId else calleeId)
+                previousCallerId = callerId
+                previousCalleeId = calleeId
+            }
+            val flags = if (hasUnresolvedCalls) hasUnresolvedCallsFlag else 0
+            val record = intArrayOf(intern(path), intern(contentHash), edgeOffset, edgeIds.size, flags)
+            this.fileRecords.add(path to record)
+        }
+
+        fun write(file: File) {
+            // write next to the target first, so a crash never leaves a half-written snapshot behind
+            file.parentFile.mkdirs()
+            val temporaryFile = File(file.parentFile, "${file.name}.tmp")
+            try {
+                writeTo(temporaryFile)
+                Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING)
+            } finally {
+                temporaryFile.delete()
+            }
+        }
+
+        private fun writeTo(temporaryFile: File) {
+            DataOutputStream(BufferedOutputStream(FileOutputStream(temporaryFile))).use { output ->
+                output.writeInt(magic)
+                output.writeInt(version)
+                val encodedStrings = this.strings.map { it.toByteArray(Charsets.UTF_8) }
+                output.writeInt(encodedStrings.size)
+                var stringOffset = 0
+                output.writeInt(stringOffset)
+                encodedStrings.forEach {
+                    stringOffset += it.size
+                    output.writeInt(stringOffset)
+                }
+                encodedStrings.forEach { output.write(it) }
+                output.writeInt(this.fileRecords.size)
+                this.fileRecords
+                        .sortedBy { (path, _) -> path }
+                        .forEach { (_, record) -> record.forEach { output.writeInt(it) } }
+                output.writeInt(this.edgeData.size())
+                this.edgeData.writeTo(output)
+            }
+        }
+
+        private fun intern(string: String): Int {
+            return this.stringIds.getOrPut(string) {
+                this.strings.add(string)
+                this.strings.size - 1
+            }
+        }
+
+        private fun writeVarInt(value: Int) {
+            var remaining = value
+            while (remaining and 0x7f.inv() != 0) {
+                this.edgeData.write((remaining and 0x7f) or 0x80)
+                remaining = remaining ushr 7
+            }
+            this.edgeData.write(remaining)
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package callgraph
 
 import com.intellij.ide.util.EditorHelper
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.project.Project
 import com.intellij.psi.PsiMethod
 import java.awt.Dimension
 import java.awt.event.KeyEvent
@@ -8,7 +10,13 @@ import java.awt.event.KeyListener
 import java.awt.geom.Point2D
 import javax.swing.*
 
-class CallGraphToolWindow {
+class CallGraphToolWindow(private val project: Project) {
+    companion object {
+        private const val progressSamplingIntervalMillis = 50
+        // zero means no limit, as upstream and downstream views had before the limits were there
+        private const val noLimit = 0
+    }
+
     private lateinit var runButton: JButton
     private lateinit var callGraphToolWindowContent: JPanel
     private lateinit var canvasPanel: JPanel
@@ -43,10 +51,20 @@ class CallGraphToolWindow {
     private lateinit var filterAccessProtectedCheckbox: JCheckBox
     private lateinit var filterAccessPackageLocalCheckbox: JCheckBox
     private lateinit var filterAccessPrivateCheckbox: JCheckBox
+    private lateinit var expandTruncatedButton: JButton
+    private lateinit var depthLimitSpinner: JSpinner
+    private lateinit var nodeBudgetSpinner: JSpinner
 
-    private val canvasBuilder = CanvasBuilder()
+    private val buildScheduler = BuildScheduler(this.project, CanvasBuilder())
     private val canvas: Canvas = Canvas(this)
     private val focusedMethods = mutableSetOf<PsiMethod>()
+    // the upstream/downstream build on the canvas, which truncated nodes are expanded from
+    private var lastFocusedBuild: CanvasConfig? = null
+    // the build of the graph on the canvas, re-runs of the same view only apply their changes to it
+    private var displayedBuild: CanvasConfig? = null
+    private var trackedProgress: BuildProgress? = null
+    // samples the progress of the running build, instead of the build pushing every step to the UI
+    private val progressSamplingTimer = Timer(progressSamplingIntervalMillis) { sampleProgress() }
     private val filterCheckboxes = listOf(
             this.filterExternalCheckbox,
             this.filterAccessPublicCheckbox,
@@ -80,6 +98,10 @@ class CallGraphToolWindow {
         nodeColorComboBoxOptions.forEach { option -> this.nodeColorComboBox.addItem(option.text) }
         this.nodeColorComboBox.selectedItem = ComboBoxOptions.NODE_COLOR_NONE.text
 
+        // upstream/downstream limits
+        this.depthLimitSpinner.model = SpinnerNumberModel(noLimit, noLimit, 1000, 1)
+        this.nodeBudgetSpinner.model = SpinnerNumberModel(noLimit, noLimit, 1000000, 100)
+
         // search field
         this.searchTextField.addKeyListener(object: KeyListener {
             override fun keyTyped(keyEvent: KeyEvent) {
@@ -109,6 +131,7 @@ class CallGraphToolWindow {
         this.showOnlyDownstreamButton.addActionListener { run(CanvasConfig.BuildType.DOWNSTREAM) }
         this.showOnlyUpstreamDownstreamButton.addActionListener { run(CanvasConfig.BuildType.UPSTREAM_DOWNSTREAM) }
         this.viewSourceCodeButton.addActionListener { viewSourceCodeHandler() }
+        this.expandTruncatedButton.addActionListener { expandTruncatedButtonHandler() }
         this.fitGraphToViewButton.addActionListener { this.canvas.fitCanvasToView() }
         this.fitGraphToBestRatioButton.addActionListener { this.canvas.fitCanvasToBestRatio() }
         this.increaseXGridButton.addActionListener { gridSizeButtonHandler(isXGrid = true, isIncrease = true) }
@@ -150,19 +173,8 @@ class CallGraphToolWindow {
         return this
     }
 
-    fun resetProgressBar(maximum: Int) {
-        this.loadingProgressBar.isIndeterminate = false
-        this.loadingProgressBar.maximum = maximum
-        this.loadingProgressBar.value = 0
-    }
-
-    fun incrementProgressBar() {
-        val newValue = this.loadingProgressBar.value + 1
-        this.loadingProgressBar.value = newValue
-        val text =
-                if (this.loadingProgressBar.isIndeterminate) "$newValue functions processed"
-                else "$newValue functions processed (total ${this.loadingProgressBar.maximum})"
-        this.loadingProgressBar.string = text
+    fun trackProgress(progress: BuildProgress) {
+        ApplicationManager.getApplication().invokeLater { this.trackedProgress = progress }
     }
 
     fun isRenderFunctionPackageName(isNodeHovered: Boolean): Boolean {
@@ -199,25 +211,57 @@ class CallGraphToolWindow {
     fun getCanvasSize(): Dimension = this.canvasPanel.size
 
     fun run(buildType: CanvasConfig.BuildType) {
-        val project = Utils.getActiveProject()
-        if (project != null) {
-            Utils.runBackgroundTask(project, Runnable {
-                // set up the config object
-                val canvasConfig = CanvasConfig(
-                        project,
-                        buildType,
-                        this.canvas,
-                        this@CallGraphToolWindow.moduleScopeComboBox.selectedItem as String? ?: "",
-                        this@CallGraphToolWindow.directoryScopeTextField.text,
-                        this@CallGraphToolWindow.focusedMethods,
-                        this@CallGraphToolWindow
-                )
-                // start building graph
-                setupUiBeforeRun(buildType)
-                this@CallGraphToolWindow.canvasBuilder.build(canvasConfig)
-                setupUiAfterRun()
-            })
-        }
+        // set up the config object
+        val canvasConfig = CanvasConfig(
+                this.project,
+                buildType,
+                this.canvas,
+                this.moduleScopeComboBox.selectedItem as String? ?: "",
+                this.directoryScopeTextField.text,
+                this.focusedMethods.toSet(),
+                this,
+                getLimit(this.depthLimitSpinner),
+                getLimit(this.nodeBudgetSpinner)
+        )
+        this.lastFocusedBuild = if (isFocusedBuildType(buildType)) canvasConfig else null
+        run(canvasConfig)
+    }
+
+    private fun run(canvasConfig: CanvasConfig) {
+        // start building graph, superseding any build still pending or running
+        val isIncremental = isSameView(this.displayedBuild, canvasConfig)
+        setupUiBeforeRun(canvasConfig, isIncremental)
+        this.buildScheduler.schedule(
+                canvasConfig,
+                if (isIncremental) this.canvas.getGraph() else null,
+                { result ->
+                    if (result.delta != null) {
+                        this.canvas.applyDelta(result.delta)
+                    } else if (result.graph != null) {
+                        this.canvas.reset(result.graph)
+                    }
+                    this.displayedBuild = canvasConfig
+                    setupUiAfterRun()
+                },
+                // the canvas goes back to the graph it had before the build
+                { setupUiAfterRun() }
+        )
+    }
+
+    // the same scope or focused methods, possibly with different limits or more truncated nodes expanded (the
+    // selection only matters to focused views, elsewhere it changes with every click on the canvas)
+    private fun isSameView(displayedBuild: CanvasConfig?, canvasConfig: CanvasConfig) =
+            displayedBuild != null &&
+                    displayedBuild.buildType == canvasConfig.buildType &&
+                    displayedBuild.selectedModuleName == canvasConfig.selectedModuleName &&
+                    displayedBuild.selectedDirectoryPath == canvasConfig.selectedDirectoryPath &&
+                    (!isFocusedBuildType(canvasConfig.buildType) ||
+                            displayedBuild.focusedMethods == canvasConfig.focusedMethods)
+
+    private fun sampleProgress() {
+        val progress = this.trackedProgress ?: return
+        this.loadingProgressBar.string = progress.getText()
+        progress.updateIndicator()
     }
 
     private fun getSelectedComboBoxOption(comboBox: JComboBox<String>): ComboBoxOptions {
@@ -237,25 +281,19 @@ class CallGraphToolWindow {
     }
 
     private fun moduleScopeButtonHandler() {
-        val project = Utils.getActiveProject()
-        if (project != null) {
-            // set up modules drop-down
-            this.moduleScopeComboBox.removeAllItems()
-            Utils.getActiveModules(project)
-                    .forEach { this.moduleScopeComboBox.addItem(it.name) }
-            disableAllSecondaryOptions()
-            this.moduleScopeComboBox.isEnabled = true
-        }
+        // set up modules drop-down
+        this.moduleScopeComboBox.removeAllItems()
+        Utils.getActiveModules(this.project)
+                .forEach { this.moduleScopeComboBox.addItem(it.name) }
+        disableAllSecondaryOptions()
+        this.moduleScopeComboBox.isEnabled = true
     }
 
     private fun directoryScopeButtonHandler() {
-        val project = Utils.getActiveProject()
-        if (project != null) {
-            // set up directory option text field
-            disableAllSecondaryOptions()
-            this.directoryScopeTextField.text = project.basePath
-            this.directoryScopeTextField.isEnabled = true
-        }
+        // set up directory option text field
+        disableAllSecondaryOptions()
+        this.directoryScopeTextField.text = this.project.basePath
+        this.directoryScopeTextField.isEnabled = true
     }
 
     private fun gridSizeButtonHandler(isXGrid: Boolean, isIncrease: Boolean) {
@@ -269,11 +307,35 @@ class CallGraphToolWindow {
         this.canvas.zoomAtPoint(zoomCenter, xZoomFactor, yZoomFactor)
     }
 
+    private fun getLimit(spinner: JSpinner): Int {
+        val limit = spinner.value as Int
+        return if (limit == noLimit) Int.MAX_VALUE else limit
+    }
+
     private fun viewSourceCodeHandler() {
         this.focusedMethods.forEach { EditorHelper.openInEditor(it) }
     }
 
-    private fun setupUiBeforeRun(buildType: CanvasConfig.BuildType) {
+    private fun expandTruncatedButtonHandler() {
+        val lastFocusedBuild = this.lastFocusedBuild ?: return
+        // rebuild the same view, with the selected truncated nodes as extra roots under the current limits
+        val truncatedMethods = this.focusedMethods.filter { this.canvas.isTruncatedMethod(it) }
+        val canvasConfig = lastFocusedBuild.copy(
+                depthLimit = getLimit(this.depthLimitSpinner),
+                nodeBudget = getLimit(this.nodeBudgetSpinner),
+                expandedMethods = lastFocusedBuild.expandedMethods.union(truncatedMethods)
+        )
+        this.lastFocusedBuild = canvasConfig
+        run(canvasConfig)
+    }
+
+    private fun isFocusedBuildType(buildType: CanvasConfig.BuildType) =
+            buildType == CanvasConfig.BuildType.UPSTREAM ||
+                    buildType == CanvasConfig.BuildType.DOWNSTREAM ||
+                    buildType == CanvasConfig.BuildType.UPSTREAM_DOWNSTREAM
+
+    private fun setupUiBeforeRun(canvasConfig: CanvasConfig, isIncremental: Boolean) {
+        val buildType = canvasConfig.buildType
         // focus on the 'graph tab
         this.mainTabbedPanel.getComponentAt(1).isEnabled = true
         this.mainTabbedPanel.selectedIndex = 1
@@ -298,7 +360,7 @@ class CallGraphToolWindow {
             CanvasConfig.BuildType.UPSTREAM,
             CanvasConfig.BuildType.DOWNSTREAM,
             CanvasConfig.BuildType.UPSTREAM_DOWNSTREAM -> {
-                val functionNames = this.focusedMethods.joinToString { it.name }
+                val functionNames = canvasConfig.focusedMethods.joinToString { it.name }
                 this.buildTypeLabel.text = "<html>${buildType.label} of function <b>$functionNames</b></html>"
             }
         }
@@ -318,6 +380,7 @@ class CallGraphToolWindow {
                 this.showOnlyUpstreamButton,
                 this.showOnlyDownstreamButton,
                 this.showOnlyUpstreamDownstreamButton,
+                this.expandTruncatedButton,
                 this.searchTextField
         ).forEach { (it as JComponent).isEnabled = false }
         // filter-related checkboxes
@@ -326,13 +389,18 @@ class CallGraphToolWindow {
             it.isSelected = true
         }
         // progress bar
+        this.loadingProgressBar.isIndeterminate = true
+        this.loadingProgressBar.string = ""
         this.loadingProgressBar.isVisible = true
-        // clear the canvas panel, ready for new graph
-        this.canvas.isVisible = false
+        this.progressSamplingTimer.start()
+        // clear the canvas panel, ready for new graph, unless the changes go onto the graph already there
+        this.canvas.isVisible = isIncremental
     }
 
     private fun setupUiAfterRun() {
         // hide progress bar
+        this.progressSamplingTimer.stop()
+        this.trackedProgress = null
         this.loadingProgressBar.isVisible = false
         // show the rendered canvas
         this.canvas.isVisible = true
@@ -386,5 +454,7 @@ class CallGraphToolWindow {
                 this.showOnlyUpstreamDownstreamButton,
                 this.viewSourceCodeButton
         ).forEach { it.isEnabled = this.focusedMethods.isNotEmpty() }
+        this.expandTruncatedButton.isEnabled =
+                this.lastFocusedBuild != null && this.focusedMethods.any { this.canvas.isTruncatedMethod(it) }
     }
 }
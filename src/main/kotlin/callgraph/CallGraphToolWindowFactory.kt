@@ -8,7 +8,7 @@ import com.intellij.ui.content.ContentFactory
 class CallGraphToolWindowFactory: com.intellij.openapi.wm.ToolWindowFactory {
     // Create the tool window content.
     override fun createToolWindowContent(project: Project, toolWindow: ToolWindow) {
-        val callGraphToolWindow = CallGraphToolWindow()
+        val callGraphToolWindow = CallGraphToolWindow(project)
 
         // register the call graph tool window as a project service, so it can be accessed by editor menu actions.
         val callGraphToolWindowProjectService =
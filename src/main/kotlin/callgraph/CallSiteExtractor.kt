@@ -0,0 +1,55 @@
+package callgraph
+
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.psi.*
+import com.intellij.psi.util.CachedValueProvider
+import com.intellij.psi.util.CachedValuesManager
+import com.intellij.psi.util.PsiModificationTracker
+
+object CallSiteExtractor {
+    // Calls that do not resolve (yet) are reported, since another file may be added or edited so that they do.
+    fun getCallees(method: PsiMethod, onUnresolvedCall: () -> Unit = {}): Set<PsiMethod> {
+        val callees = mutableSetOf<PsiMethod>()
+        method.accept(object: JavaRecursiveElementWalkingVisitor() {
+            override fun visitMethodCallExpression(expression: PsiMethodCallExpression) {
+                // resolving calls is the expensive part, so long method bodies can be cancelled halfway
+                ProgressManager.checkCanceled()
+                super.visitMethodCallExpression(expression)
+                val callee = expression.resolveMethod()
+                if (callee == null) onUnresolvedCall() else callees.add(callee)
+            }
+
+            override fun visitNewExpression(expression: PsiNewExpression) {
+                super.visitNewExpression(expression)
+                val callee = expression.resolveConstructor()
+                if (callee != null) {
+                    callees.add(callee)
+                } else {
+                    // classes without a declared constructor, and arrays, have no constructor to resolve to
+                    val classReference = expression.classOrAnonymousClassReference
+                    if (classReference != null && classReference.resolve() == null) {
+                        onUnresolvedCall()
+                    }
+                }
+            }
+
+            override fun visitMethodReferenceExpression(expression: PsiMethodReferenceExpression) {
+                super.visitMethodReferenceExpression(expression)
+                val callee = expression.resolve()
+                if (callee is PsiMethod) {
+                    callees.add(callee)
+                } else if (callee == null) {
+                    onUnresolvedCall()
+                }
+            }
+        })
+        return callees
+    }
+
+    // callees kept on the method until the next PSI change, so views that extract the same methods over and over,
+    // such as a downstream view being expanded, resolve their calls once
+    fun getCachedCallees(method: PsiMethod): Set<PsiMethod> =
+            CachedValuesManager.getCachedValue(method) {
+                CachedValueProvider.Result.create(getCallees(method), PsiModificationTracker.MODIFICATION_COUNT)
+            }
+}
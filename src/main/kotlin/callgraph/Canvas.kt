@@ -1,5 +1,6 @@
 package callgraph
 
+import com.intellij.psi.PsiMethod
 import com.intellij.psi.PsiModifier
 import java.awt.*
 import java.awt.geom.Arc2D
@@ -25,6 +26,8 @@ class Canvas(private val callGraphToolWindow: CallGraphToolWindow): JPanel() {
             PsiModifier.PACKAGE_LOCAL to Colors.BLUE.color,
             PsiModifier.PRIVATE to Colors.RED.color
     )
+    // indexed by access level, in the order of NodeAttributes.accessModifiers
+    private val methodAccessColors = NodeAttributes.accessModifiers.map { this.methodAccessColorMap.getValue(it) }
     private val methodAccessLabelMap = mapOf(
             PsiModifier.PUBLIC to "public",
             PsiModifier.PROTECTED to "protected",
@@ -72,8 +75,8 @@ class Canvas(private val callGraphToolWindow: CallGraphToolWindow): JPanel() {
 
         // draw upstream/downstream edgesMap
         val highlightedNodes = this.visibleNodes.filter { isNodeHighlighted(it) }.toSet()
-        val upstreamEdges = highlightedNodes.flatMap { it.inEdges.values }.toSet()
-        val downstreamEdges = highlightedNodes.flatMap { it.outEdges.values }.toSet()
+        val upstreamEdges = highlightedNodes.flatMap { it.inEdges }.toSet()
+        val downstreamEdges = highlightedNodes.flatMap { it.outEdges }.toSet()
         upstreamEdges.forEach { drawNonLoopEdge(graphics2D, it, Colors.UPSTREAM_COLOR.color) }
         downstreamEdges.forEach { drawNonLoopEdge(graphics2D, it, Colors.DOWNSTREAM_COLOR.color) }
 
@@ -108,7 +111,7 @@ class Canvas(private val callGraphToolWindow: CallGraphToolWindow): JPanel() {
         // draw legend
         if (this.callGraphToolWindow.isLegendNeeded()) {
             val legend = if (this.callGraphToolWindow.isNodeColorByAccess()) {
-                listOf(PsiModifier.PUBLIC, PsiModifier.PROTECTED, PsiModifier.PACKAGE_LOCAL, PsiModifier.PRIVATE)
+                NodeAttributes.accessModifiers
                         .map { this.methodAccessLabelMap.getValue(it) to this.methodAccessColorMap.getValue(it) }
             } else {
                 emptyList()
@@ -129,6 +132,21 @@ class Canvas(private val callGraphToolWindow: CallGraphToolWindow): JPanel() {
         this.zoomRatio.setLocation(this.defaultZoomRatio, this.defaultZoomRatio)
     }
 
+    // changes the displayed graph in place, keeping the camera and the layout of the nodes that stay
+    fun applyDelta(delta: GraphDelta) {
+        delta.applyTo(this.graph)
+        this.visibleNodes.clear()
+        this.visibleNodes.addAll(this.graph.getNodes())
+        this.visibleEdges.clear()
+        this.visibleEdges.addAll(this.graph.getEdges())
+        this.nodeShapesMap.clear()
+        if (this.hoveredNode?.let { this.graph.findNode(it.id) !== it } == true) {
+            this.hoveredNode = null
+        }
+    }
+
+    fun getGraph() = this.graph
+
     fun setHoveredNode(node: Node?): Canvas {
         if (this.hoveredNode !== node) {
             this.hoveredNode = node
@@ -183,23 +201,26 @@ class Canvas(private val callGraphToolWindow: CallGraphToolWindow): JPanel() {
 
     fun getNodesCount() = this.graph.getNodes().size
 
+    fun isTruncatedMethod(method: PsiMethod) = this.graph.findNode(method)?.isTruncated ?: false
+
     fun filterChangeHandler() {
+        val attributes = this.graph.attributes
+        // indexed by access level, in the order of NodeAttributes.accessModifiers
+        val isVisibleAccessLevel = booleanArrayOf(
+                this.callGraphToolWindow.isFilterAccessPublicChecked(),
+                this.callGraphToolWindow.isFilterAccessProtectedChecked(),
+                this.callGraphToolWindow.isFilterAccessPackageLocalChecked(),
+                this.callGraphToolWindow.isFilterAccessPrivateChecked()
+        )
+        val isVisibleExternal = this.callGraphToolWindow.isFilterExternalChecked()
         this.visibleNodes.clear()
-        this.visibleNodes.addAll(this.graph.getNodes()
-                .filter { node ->
-                    val method = node.method
-                    val isVisibleAccessLevel = when {
-                        Utils.isPublic(method) -> this.callGraphToolWindow.isFilterAccessPublicChecked()
-                        Utils.isProtected(method) -> this.callGraphToolWindow.isFilterAccessProtectedChecked()
-                        Utils.isPackageLocal(method) -> this.callGraphToolWindow.isFilterAccessPackageLocalChecked()
-                        Utils.isPrivate(method) -> this.callGraphToolWindow.isFilterAccessPrivateChecked()
-                        else -> true
-                    }
-                    val isExternalMethod = Utils.getSourceRoot(method.containingFile.virtualFile) == null
-                    val isVisibleExternal = !isExternalMethod || this.callGraphToolWindow.isFilterExternalChecked()
-
-                    isVisibleAccessLevel && isVisibleExternal
-                })
+        this.graph.getNodes().forEach { node ->
+            val accessLevel = attributes.getAccessLevel(node.attributeSlot)
+            if ((accessLevel == NodeAttributes.noAccessLevel || isVisibleAccessLevel[accessLevel]) &&
+                    (isVisibleExternal || !attributes.isExternal(node.attributeSlot))) {
+                this.visibleNodes.add(node)
+            }
+        }
         this.visibleEdges.clear()
         this.visibleEdges.addAll(graph.getEdges()
                 .filter { this.visibleNodes.contains(it.sourceNode) && this.visibleNodes.contains(it.targetNode) })
@@ -245,19 +266,39 @@ class Canvas(private val callGraphToolWindow: CallGraphToolWindow): JPanel() {
         val backgroundColor = getNodeBackgroundColor(node)
         val nodeShape = drawCircle(graphics2D, nodeCenter, backgroundColor, outlineColor)
         this.nodeShapesMap[nodeShape] = node
+        if (node.isTruncated) {
+            drawTruncatedMarker(graphics2D, nodeCenter, outlineColor)
+        }
+    }
+
+    private fun drawTruncatedMarker(graphics2D: Graphics2D, nodeCenter: Point2D.Float, markerColor: Color) {
+        // a plus sign at the upper right of the node, hinting that it can be expanded
+        val markerCenter = Point2D.Float(nodeCenter.x + 2 * this.nodeRadius, nodeCenter.y - 2 * this.nodeRadius)
+        val markerHalfSize = this.nodeRadius
+        drawLine(
+                graphics2D,
+                Point2D.Float(markerCenter.x - markerHalfSize, markerCenter.y),
+                Point2D.Float(markerCenter.x + markerHalfSize, markerCenter.y),
+                markerColor
+        )
+        drawLine(
+                graphics2D,
+                Point2D.Float(markerCenter.x, markerCenter.y - markerHalfSize),
+                Point2D.Float(markerCenter.x, markerCenter.y + markerHalfSize),
+                markerColor
+        )
     }
 
     private fun getNodeBackgroundColor(node: Node): Color {
         if (this.callGraphToolWindow.isNodeColorByAccess()) {
-            return this.methodAccessColorMap.entries
-                    .firstOrNull { (accessLevel, _) -> node.method.modifierList.hasModifierProperty(accessLevel) }
-                    ?.value
-                    ?: Colors.BACKGROUND_COLOR.color
+            val accessLevel = this.graph.attributes.getAccessLevel(node.attributeSlot)
+            if (accessLevel != NodeAttributes.noAccessLevel) {
+                return this.methodAccessColors[accessLevel]
+            }
         } else if (this.callGraphToolWindow.isNodeColorByClassName()) {
-            val psiClass = node.method.containingClass
-            if (psiClass != null) {
-                val hashIndex = psiClass.hashCode() % this.heatMapColors.size
-                return this.heatMapColors[hashIndex]
+            val classId = this.graph.attributes.getClassId(node.attributeSlot)
+            if (classId != NodeAttributes.noClassId) {
+                return this.heatMapColors[classId % this.heatMapColors.size]
             }
         }
         return Colors.BACKGROUND_COLOR.color
@@ -275,7 +316,7 @@ class Canvas(private val callGraphToolWindow: CallGraphToolWindow): JPanel() {
             labels.add(node.packageName to Colors.UN_HIGHLIGHTED_COLOR.color)
         }
         // function signature
-        val signature = if (isNodeHovered) node.signature else node.method.name
+        val signature = if (isNodeHovered) node.signature else node.name
         labels.add(signature to signatureColor)
         return labels
     }
@@ -291,7 +332,7 @@ class Canvas(private val callGraphToolWindow: CallGraphToolWindow): JPanel() {
                 nodeCenter.y + halfLabelHeight
         )
         val backgroundColor =
-                if (this.callGraphToolWindow.isQueried(node.method.name)) Colors.HIGHLIGHTED_BACKGROUND_COLOR.color
+                if (this.callGraphToolWindow.isQueried(node.name)) Colors.HIGHLIGHTED_BACKGROUND_COLOR.color
                 else Colors.BACKGROUND_COLOR.color
         val borderColor = if (isNodeHovered) Colors.UN_HIGHLIGHTED_COLOR.color else Colors.BACKGROUND_COLOR.color
         drawLabels(graphics2D, boundingBoxLowerLeft, labels, backgroundColor, borderColor, 2)
@@ -1,82 +1,222 @@
 package callgraph
 
+import com.intellij.openapi.components.ServiceManager
 import com.intellij.openapi.progress.ProgressIndicator
 import com.intellij.openapi.progress.ProgressIndicatorProvider
-import com.intellij.psi.PsiFile
+import com.intellij.openapi.project.DumbService
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.Computable
+import com.intellij.openapi.vfs.VirtualFile
 import com.intellij.psi.PsiMethod
 
 class CanvasBuilder {
-    private val fileModifiedTimeCache = mutableMapOf<PsiFile, Long>()
+    // either a new graph to put on the canvas, or the changes to apply to the graph already on it
+    class Result(val graph: Graph?, val delta: GraphDelta?)
 
     private var progressIndicator: ProgressIndicator? = null
-    private var dependenciesCache = emptySet<Dependency>()
+    private var progress = BuildProgress(null)
+    private val dependencyIndex = DependencyIndex()
+    private var isDependencyIndexInitialized = false
 
-    fun build(canvasConfig: CanvasConfig) {
-        // cancel existing progress if any
-        this.progressIndicator?.cancel()
+    // with a displayed graph of the same view, the build comes back as a delta against it
+    fun build(canvasConfig: CanvasConfig, displayedGraph: Graph?): Result {
+        // superseded builds are cancelled by the build scheduler, through the indicator of the running task
         this.progressIndicator = ProgressIndicatorProvider.getGlobalProgressIndicator()
+        this.progress = BuildProgress(this.progressIndicator)
+        canvasConfig.callGraphToolWindow.trackProgress(this.progress)
 
-        // build a dependency snapshot for the entire code base
-        val dependencies = getDependencies(canvasConfig, this.dependenciesCache, this.fileModifiedTimeCache)
+        // bring the dependency snapshot for the entire code base up to date, if the build type needs one or it is
+        // already there to be traversed (this happens outside of the read action below, because the extraction
+        // stages take read actions of their own)
+        if (this.isDependencyIndexInitialized || isDependencySnapshotNeeded(canvasConfig.buildType)) {
+            updateDependencies(canvasConfig)
+        }
 
-        // visualize the viewing part as graph
-        val sourceCodeRoots = Utils.getSourceCodeRoots(canvasConfig)
-        val files = Utils.getSourceCodeFiles(canvasConfig.project, sourceCodeRoots)
-        val methods = Utils.getMethodsInScope(canvasConfig, files)
-        val dependencyView = Utils.getDependencyView(canvasConfig, methods, dependencies)
-        val graph = buildGraph(methods, dependencyView)
-        canvasConfig.canvas.reset(graph)
-    }
+        // collect the methods in view (the file enumeration needs the indices to be ready)
+        this.progress.startStage(BuildProgress.Stage.ENUMERATE)
+        val methods = Utils.runSmartReadActionYieldingToWrites(canvasConfig.project, this.progressIndicator) {
+            val files = Utils.getSourceCodeFiles(canvasConfig)
+            Utils.getMethodsInScope(canvasConfig, files)
+        }
+        // the searches of focused views take a read action per method, so they never hold the read lock for long
+        val dependencyView = getDependencyView(canvasConfig, methods)
 
-    private fun buildGraph(methods: Set<PsiMethod>, dependencyView: Set<Dependency>): Graph {
-        val graph = Graph()
-        methods.forEach { graph.addNode(it) }
-        dependencyView.forEach {
-            graph.addNode(it.caller)
-            graph.addNode(it.callee)
-            graph.addEdge(it.caller, it.callee)
+        // read the viewing part off the PSI
+        val snapshot = Utils.runReadActionYieldingToWrites(this.progressIndicator) {
+            takeSnapshot(canvasConfig.project, methods, dependencyView)
+        }
+
+        // visualize it as graph, without holding the read lock, so a long layout never holds up editing
+        this.progress.startStage(BuildProgress.Stage.LAYOUT)
+        val graph = snapshot.toGraph()
+        this.progressIndicator?.checkCanceled()
+        // only nodes new to the canvas are placed, the rest keep their layout, but with none of the displayed nodes
+        // left to place them next to, the graph is laid out anew here rather than on the EDT
+        if (displayedGraph != null && graph.getNodes().any { displayedGraph.findNode(it.id) != null }) {
+            return Result(null, GraphDelta.compute(displayedGraph, graph))
         }
         Utils.layout(graph)
-        return graph
+        return Result(graph, null)
+    }
+
+    private fun isDependencySnapshotNeeded(buildType: CanvasConfig.BuildType) =
+            buildType != CanvasConfig.BuildType.UPSTREAM &&
+                    buildType != CanvasConfig.BuildType.DOWNSTREAM &&
+                    buildType != CanvasConfig.BuildType.UPSTREAM_DOWNSTREAM
+
+    private fun getDependencyView(canvasConfig: CanvasConfig, methods: Set<PsiMethod>): Neighborhood {
+        return when (canvasConfig.buildType) {
+            CanvasConfig.BuildType.UPSTREAM -> {
+                this.progress.startStage(BuildProgress.Stage.SEARCH)
+                getNeighborhood(canvasConfig, methods, true)
+            }
+            CanvasConfig.BuildType.DOWNSTREAM -> {
+                this.progress.startStage(BuildProgress.Stage.SEARCH)
+                getNeighborhood(canvasConfig, methods, false)
+            }
+            CanvasConfig.BuildType.UPSTREAM_DOWNSTREAM -> {
+                this.progress.startStage(BuildProgress.Stage.SEARCH)
+                getNeighborhood(canvasConfig, methods, true).union(getNeighborhood(canvasConfig, methods, false))
+            }
+            else -> Utils.runReadActionYieldingToWrites(this.progressIndicator) {
+                Neighborhood(Utils.getDependencyView(canvasConfig, methods, this.dependencyIndex), emptySet())
+            }
+        }
+    }
+
+    private fun getNeighborhood(
+            canvasConfig: CanvasConfig,
+            methods: Set<PsiMethod>,
+            isUpstream: Boolean
+    ): Neighborhood {
+        val neighborhood = getNeighborhoodFromRoots(canvasConfig, methods, isUpstream)
+        if (canvasConfig.expandedMethods.isEmpty()) {
+            return neighborhood
+        }
+        // truncated methods the user chose to expand get a neighborhood of their own, with the same limits
+        val expandedNeighborhood = getNeighborhoodFromRoots(canvasConfig, canvasConfig.expandedMethods, isUpstream)
+        return Neighborhood(
+                neighborhood.dependencies.union(expandedNeighborhood.dependencies),
+                neighborhood.truncatedMethods
+                        .filter { !canvasConfig.expandedMethods.contains(it) }
+                        .union(expandedNeighborhood.truncatedMethods)
+        )
     }
 
-    private fun getDependencies(
+    private fun getNeighborhoodFromRoots(
             canvasConfig: CanvasConfig,
-            dependenciesCache: Set<Dependency>,
-            fileModifiedTimeCache: Map<PsiFile, Long>
-    ): Set<Dependency> {
-        val allFiles = Utils.getAllSourceCodeFiles(canvasConfig.project)
-        val newFiles = allFiles.filter { !fileModifiedTimeCache.containsKey(it) }
-        val changedFiles = allFiles
-                .filter { fileModifiedTimeCache.containsKey(it) && fileModifiedTimeCache[it] != it.modificationStamp }
-                .toSet()
-        val validDependencies = dependenciesCache
-                .filter {
-                    !changedFiles.contains(it.caller.containingFile) && !changedFiles.contains(it.callee.containingFile)
+            methods: Set<PsiMethod>,
+            isUpstream: Boolean
+    ): Neighborhood {
+        val depthLimit = canvasConfig.depthLimit
+        val nodeBudget = canvasConfig.nodeBudget
+        return when {
+            // once the dependency snapshot is built, focused views are traversals of its adjacency
+            this.isDependencyIndexInitialized ->
+                Utils.runReadActionYieldingToWrites(this.progressIndicator) {
+                    this.dependencyIndex.getNeighborhood(methods, isUpstream, depthLimit, nodeBudget)
                 }
-                .toSet()
-        val invalidFiles = dependenciesCache
-                .filter { !validDependencies.contains(it) }
-                .flatMap { listOf(it.caller.containingFile, it.callee.containingFile) }
-                .toSet()
-        val filesToParse = newFiles.union(invalidFiles)
-        val methodsToParse = Utils.getMethodsFromFiles(filesToParse)
-
-        // parse method dependencies
-        canvasConfig.callGraphToolWindow.resetProgressBar(methodsToParse.size)
-        val newDependencies = methodsToParse
-                .flatMap {
-                    canvasConfig.callGraphToolWindow.incrementProgressBar()
-                    Utils.getDependenciesFromMethod(it)
+            // callers are found through the reference search, so the rest of the code base is never parsed
+            isUpstream ->
+                UpstreamSearcher(canvasConfig.project, this.progressIndicator, depthLimit, nodeBudget)
+                        .search(methods) { this.progress.increment() }
+            // callees are only extracted for the methods reachable from the focused ones
+            else ->
+                DownstreamExpander(canvasConfig.project, this.progressIndicator, depthLimit, nodeBudget)
+                        .expand(methods) { this.progress.increment() }
+        }
+    }
+
+    private fun takeSnapshot(project: Project, methods: Set<PsiMethod>, dependencyView: Neighborhood): GraphSnapshot {
+        // the methods were collected in earlier read actions, so the ones removed by an edit since are left out
+        val snapshot = GraphSnapshot(project)
+        methods.filter { it.isValid }.forEach { snapshot.addMethod(it) }
+        dependencyView.dependencies
+                .filter { it.caller.isValid && it.callee.isValid }
+                .forEach { snapshot.addDependency(it) }
+        dependencyView.truncatedMethods.filter { it.isValid }.forEach { snapshot.markTruncated(it) }
+        return snapshot
+    }
+
+    private fun updateDependencies(canvasConfig: CanvasConfig) {
+        // files edited since the last build, as reported by PSI and VFS events
+        val invalidationTracker =
+                ServiceManager.getService(canvasConfig.project, DependencyInvalidationTracker::class.java)
+        val dirtyFiles = invalidationTracker.drainDirtyFiles()
+        try {
+            updateDependencyIndex(canvasConfig, dirtyFiles)
+        } catch (e: Throwable) {
+            // the build did not go through (e.g. it was cancelled), so the edits still need to be picked up next time
+            invalidationTracker.restoreDirtyFiles(dirtyFiles)
+            throw e
+        }
+    }
+
+    private fun updateDependencyIndex(canvasConfig: CanvasConfig, dirtyFiles: Set<VirtualFile>) {
+        val dependencyStore = ServiceManager.getService(canvasConfig.project, PersistentDependencyStore::class.java)
+        val isInitialBuild = !this.isDependencyIndexInitialized
+        // the first build goes through every source file, later builds only through the edited files and the files
+        // calling into them, whose calls have to be resolved again
+        val invalidFiles =
+                if (isInitialBuild) {
+                    DumbService.getInstance(canvasConfig.project).runReadActionInSmartMode(Computable<Set<VirtualFile>> {
+                        Utils.getAllSourceCodeFiles(canvasConfig.project)
+                    })
+                } else {
+                    dirtyFiles.union(dirtyFiles.flatMap { this.dependencyIndex.getCallerFiles(it) })
                 }
-                .toSet()
-        val dependencies = validDependencies.union(newDependencies)
 
-        // cache the dependencies for next use
-        this.dependenciesCache = dependencies
-        this.fileModifiedTimeCache.clear()
-        this.fileModifiedTimeCache.putAll(allFiles.associateBy({ it }, { it.modificationStamp }))
+        // parse method dependencies, and index them by the file they originate from as they come in
+        this.progress.startStage(BuildProgress.Stage.EXTRACT)
+        val changedFiles = mutableSetOf<VirtualFile>()
+        val unresolvedRestoredFiles = mutableSetOf<VirtualFile>()
+        // files with the same content as in an earlier session are restored from disk instead of parsed
+        extractDependencies(canvasConfig.project, dependencyStore, invalidFiles, isInitialBuild) { fileDependencies ->
+            if (fileDependencies.source != ExtractionPipeline.Source.RESTORED) {
+                changedFiles.add(fileDependencies.file)
+            } else if (fileDependencies.hasUnresolvedCalls) {
+                unresolvedRestoredFiles.add(fileDependencies.file)
+            }
+        }
+        // restored files had their calls resolved against the code base of that session, so the ones calling into a
+        // file changed since, or with calls that did not resolve back then, are extracted again
+        if (isInitialBuild && changedFiles.isNotEmpty()) {
+            val staleFiles = changedFiles
+                    .flatMap { this.dependencyIndex.getCallerFiles(it) }
+                    .union(unresolvedRestoredFiles)
+                    .minus(changedFiles)
+            extractDependencies(canvasConfig.project, dependencyStore, staleFiles, false) {}
+        }
+        this.isDependencyIndexInitialized = true
+    }
 
-        return dependencies
+    private fun extractDependencies(
+            project: Project,
+            dependencyStore: PersistentDependencyStore,
+            files: Set<VirtualFile>,
+            isRestoringFromStore: Boolean,
+            onFileIndexed: (ExtractionPipeline.FileDependencies) -> Unit
+    ) {
+        ExtractionPipeline(project, dependencyStore, this.progressIndicator).run(
+                { consumer -> files.forEach(consumer) },
+                isRestoringFromStore,
+                { this.progress.increment() },
+                { fileDependencies ->
+                    val file = fileDependencies.file
+                    when (fileDependencies.source) {
+                        ExtractionPipeline.Source.EXTRACTED -> {
+                            this.dependencyIndex.put(file, fileDependencies.methodEdges, fileDependencies.calleeFiles)
+                            dependencyStore.put(file.path, fileDependencies.storeEntry)
+                        }
+                        ExtractionPipeline.Source.RESTORED ->
+                            this.dependencyIndex.put(file, fileDependencies.methodEdges, fileDependencies.calleeFiles)
+                        ExtractionPipeline.Source.REMOVED -> {
+                            this.dependencyIndex.remove(file)
+                            dependencyStore.remove(file.path)
+                        }
+                    }
+                    onFileIndexed(fileDependencies)
+                }
+        )
     }
 }
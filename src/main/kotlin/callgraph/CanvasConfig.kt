@@ -10,7 +10,10 @@ data class CanvasConfig(
         val selectedModuleName: String,
         val selectedDirectoryPath: String,
         val focusedMethods: Set<PsiMethod>,
-        val callGraphToolWindow: CallGraphToolWindow
+        val callGraphToolWindow: CallGraphToolWindow,
+        val depthLimit: Int = Int.MAX_VALUE,
+        val nodeBudget: Int = Int.MAX_VALUE,
+        val expandedMethods: Set<PsiMethod> = emptySet()
 ) {
     enum class BuildType(val label: String) {
         WHOLE_PROJECT_WITH_TEST_LIMITED("Whole project (test files included), limited upstream/downstream scope"),
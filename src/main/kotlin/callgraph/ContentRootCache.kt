@@ -0,0 +1,33 @@
+package callgraph
+
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.roots.ProjectFileIndex
+import com.intellij.openapi.vfs.VfsUtilCore
+import com.intellij.openapi.vfs.VirtualFile
+import gnu.trove.THashMap
+
+// Content roots of the directories met while taking one snapshot. The files of a directory share its content root,
+// so the project file index is only asked once per directory.
+class ContentRootCache(project: Project) {
+    // directories outside of any content root are kept as well, with a null root and path
+    private class DirectoryEntry(val contentRoot: VirtualFile?, val relativePath: String?)
+
+    private val projectFileIndex = ProjectFileIndex.SERVICE.getInstance(project)
+    private val entriesByDirectory = THashMap<VirtualFile, DirectoryEntry>()
+
+    fun getContentRoot(file: VirtualFile) = getEntry(file).contentRoot
+
+    // the path of the directory of the file, relative to its content root
+    fun getRelativeDirectoryPath(file: VirtualFile) = getEntry(file).relativePath
+
+    private fun getEntry(file: VirtualFile): DirectoryEntry {
+        val directory = file.parent ?: return createEntry(file)
+        return this.entriesByDirectory.getOrPut(directory) { createEntry(directory) }
+    }
+
+    private fun createEntry(directory: VirtualFile): DirectoryEntry {
+        val contentRoot = this.projectFileIndex.getContentRootForFile(directory)
+        val relativePath = if (contentRoot == null) null else VfsUtilCore.getRelativePath(directory, contentRoot)
+        return DirectoryEntry(contentRoot, relativePath)
+    }
+}
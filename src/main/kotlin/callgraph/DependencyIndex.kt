@@ -0,0 +1,143 @@
+package callgraph
+
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.psi.PsiMethod
+import com.intellij.psi.SmartPointerManager
+import com.intellij.psi.SmartPsiElementPointer
+import gnu.trove.TIntHashSet
+import gnu.trove.TLongHashSet
+
+class DependencyIndex {
+    companion object {
+        // called inside the read action that extracted the dependencies, while their methods are known to be valid
+        fun toMethodEdges(dependencies: Collection<Dependency>): List<MethodEdge> {
+            val endsByMethod = mutableMapOf<PsiMethod, Pair<Long, SmartPsiElementPointer<PsiMethod>>>()
+            val getEnd = { method: PsiMethod ->
+                endsByMethod.getOrPut(method) {
+                    Utils.getMethodFingerprint(method) to SmartPointerManager.createPointer(method)
+                }
+            }
+            return dependencies.map {
+                val (callerFingerprint, caller) = getEnd(it.caller)
+                val (calleeFingerprint, callee) = getEnd(it.callee)
+                MethodEdge(callerFingerprint, caller, calleeFingerprint, callee)
+            }
+        }
+    }
+
+    // A dependency handed over from the read action that extracted it. The PSI may change before it gets indexed, so
+    // both ends are already fingerprinted and pointed to, and indexing reads nothing off the PSI.
+    class MethodEdge(
+            val callerFingerprint: Long,
+            val caller: SmartPsiElementPointer<PsiMethod>,
+            val calleeFingerprint: Long,
+            val callee: SmartPsiElementPointer<PsiMethod>
+    )
+
+    private val symbolTable = MethodSymbolTable()
+    // edges are caller and callee ids packed into a long, see MethodSymbolTable.packEdge, kept in a plain array per
+    // file, which is 8 bytes per edge
+    private val edgesByCallerFile = mutableMapOf<VirtualFile, LongArray>()
+    private val calleeFilesByCallerFile = mutableMapOf<VirtualFile, Set<VirtualFile>>()
+    private val callerFilesByCalleeFile = mutableMapOf<VirtualFile, MutableSet<VirtualFile>>()
+    // built on the first traversal after the index changed
+    private var adjacency: CallGraphAdjacency? = null
+
+    // called inside a read action, like the other lookups
+    fun getMethodIds(methods: Set<PsiMethod>): TIntHashSet {
+        val methodIds = TIntHashSet(methods.size)
+        // the methods were collected in an earlier read action, so an edit may have removed some of them since
+        methods.filter { it.isValid }.forEach {
+            val id = this.symbolTable.getId(it)
+            if (id >= 0) {
+                methodIds.add(id)
+            }
+        }
+        return methodIds
+    }
+
+    fun getDependencies(filter: (Int, Int) -> Boolean): Set<Dependency> {
+        val dependencies = mutableSetOf<Dependency>()
+        this.edgesByCallerFile.values.forEach { edges ->
+            edges.forEach { edge ->
+                val callerId = MethodSymbolTable.getCallerId(edge)
+                val calleeId = MethodSymbolTable.getCalleeId(edge)
+                if (filter(callerId, calleeId)) {
+                    getDependency(callerId, calleeId)?.let { dependencies.add(it) }
+                }
+            }
+        }
+        return dependencies
+    }
+
+    fun getNeighborhood(
+            methods: Set<PsiMethod>,
+            isUpstream: Boolean,
+            depthLimit: Int,
+            nodeBudget: Int
+    ): Neighborhood {
+        val adjacency = this.adjacency
+                ?: CallGraphAdjacency(this.symbolTable.capacity, this.edgesByCallerFile.values).also {
+                    this.adjacency = it
+                }
+        val dependencies = mutableSetOf<Dependency>()
+        val truncatedMethodIds = TIntHashSet()
+        adjacency.traverse(
+                getMethodIds(methods).toArray(),
+                isUpstream,
+                depthLimit,
+                nodeBudget,
+                { callerId, calleeId -> getDependency(callerId, calleeId)?.let { dependencies.add(it) } },
+                { truncatedMethodIds.add(it) }
+        )
+        val truncatedMethods = truncatedMethodIds.toArray().mapNotNull { this.symbolTable.getMethod(it) }.toSet()
+        return Neighborhood(dependencies, truncatedMethods)
+    }
+
+    fun getCallerFiles(calleeFile: VirtualFile): Set<VirtualFile> =
+            this.callerFilesByCalleeFile[calleeFile] ?: emptySet()
+
+    fun put(callerFile: VirtualFile, methodEdges: List<MethodEdge>, calleeFiles: Set<VirtualFile>) {
+        remove(callerFile)
+        this.adjacency = null
+        val edges = TLongHashSet(methodEdges.size)
+        methodEdges.forEach {
+            val callerId = this.symbolTable.acquire(it.callerFingerprint, it.caller)
+            val calleeId = this.symbolTable.acquire(it.calleeFingerprint, it.callee)
+            val edge = MethodSymbolTable.packEdge(callerId, calleeId)
+            // both ends hold one reference per edge, so a duplicate edge gives its references back
+            if (!edges.add(edge)) {
+                releaseEdge(edge)
+            }
+        }
+        this.edgesByCallerFile[callerFile] = edges.toArray()
+        this.calleeFilesByCallerFile[callerFile] = calleeFiles
+        calleeFiles.forEach { this.callerFilesByCalleeFile.getOrPut(it) { mutableSetOf() }.add(callerFile) }
+    }
+
+    fun remove(callerFile: VirtualFile) {
+        this.adjacency = null
+        this.edgesByCallerFile.remove(callerFile)?.forEach { releaseEdge(it) }
+        // only the reverse entries of this file's own callees need to be touched
+        this.calleeFilesByCallerFile.remove(callerFile)?.forEach { calleeFile ->
+            val callerFiles = this.callerFilesByCalleeFile[calleeFile]
+            if (callerFiles != null) {
+                callerFiles.remove(callerFile)
+                if (callerFiles.isEmpty()) {
+                    this.callerFilesByCalleeFile.remove(calleeFile)
+                }
+            }
+        }
+    }
+
+    private fun getDependency(callerId: Int, calleeId: Int): Dependency? {
+        val caller = this.symbolTable.getMethod(callerId) ?: return null
+        val callee = this.symbolTable.getMethod(calleeId) ?: return null
+        return Dependency(caller, callee)
+    }
+
+    private fun releaseEdge(edge: Long) {
+        this.symbolTable.release(MethodSymbolTable.getCallerId(edge))
+        this.symbolTable.release(MethodSymbolTable.getCalleeId(edge))
+    }
+}
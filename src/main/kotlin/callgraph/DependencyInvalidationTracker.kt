@@ -0,0 +1,86 @@
+package callgraph
+
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.roots.ProjectFileIndex
+import com.intellij.openapi.vfs.VfsUtilCore
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.openapi.vfs.VirtualFileManager
+import com.intellij.openapi.vfs.newvfs.BulkFileListener
+import com.intellij.openapi.vfs.newvfs.events.VFileCopyEvent
+import com.intellij.openapi.vfs.newvfs.events.VFileDeleteEvent
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent
+import com.intellij.psi.PsiFile
+import com.intellij.psi.PsiManager
+import com.intellij.psi.PsiTreeChangeAdapter
+import com.intellij.psi.PsiTreeChangeEvent
+import java.util.concurrent.ConcurrentHashMap
+
+class DependencyInvalidationTracker(project: Project) {
+    private val projectFileIndex = ProjectFileIndex.SERVICE.getInstance(project)
+    private val dirtyFiles = ConcurrentHashMap.newKeySet<VirtualFile>()
+
+    init {
+        // in-editor changes
+        PsiManager.getInstance(project).addPsiTreeChangeListener(object: PsiTreeChangeAdapter() {
+            override fun childAdded(event: PsiTreeChangeEvent) = markDirty(event)
+
+            override fun childRemoved(event: PsiTreeChangeEvent) = markDirty(event)
+
+            override fun childReplaced(event: PsiTreeChangeEvent) = markDirty(event)
+
+            override fun childrenChanged(event: PsiTreeChangeEvent) = markDirty(event)
+
+            override fun childMoved(event: PsiTreeChangeEvent) = markDirty(event)
+
+            override fun propertyChanged(event: PsiTreeChangeEvent) = markDirty(event)
+        }, project)
+
+        // changes on disk, including files created, deleted or moved outside the editor
+        project.messageBus.connect(project).subscribe(VirtualFileManager.VFS_CHANGES, object: BulkFileListener {
+            override fun before(events: List<VFileEvent>) {
+                // deleted and moved-away files are only in the project content before the event
+                events
+                        .filter { it is VFileDeleteEvent || it is VFileMoveEvent }
+                        .mapNotNull { it.file }
+                        .forEach { markDirty(it) }
+            }
+
+            override fun after(events: List<VFileEvent>) {
+                events
+                        .filter { it !is VFileDeleteEvent }
+                        .mapNotNull { if (it is VFileCopyEvent) it.findCreatedFile() else it.file }
+                        .forEach { markDirty(it) }
+            }
+        })
+    }
+
+    fun drainDirtyFiles(): Set<VirtualFile> {
+        val drainedFiles = mutableSetOf<VirtualFile>()
+        val iterator = this.dirtyFiles.iterator()
+        while (iterator.hasNext()) {
+            drainedFiles.add(iterator.next())
+            iterator.remove()
+        }
+        return drainedFiles
+    }
+
+    fun restoreDirtyFiles(files: Collection<VirtualFile>) {
+        this.dirtyFiles.addAll(files)
+    }
+
+    private fun markDirty(event: PsiTreeChangeEvent) {
+        // file-level events (e.g. a file added to a directory) carry the file as the child
+        val file = event.file ?: event.child as? PsiFile
+        file?.virtualFile?.let { markDirty(it) }
+    }
+
+    private fun markDirty(file: VirtualFile) {
+        VfsUtilCore.iterateChildrenRecursively(file, null, {
+            if (!it.isDirectory && it.extension == "java" && this.projectFileIndex.isInContent(it)) {
+                this.dirtyFiles.add(it)
+            }
+            true
+        })
+    }
+}
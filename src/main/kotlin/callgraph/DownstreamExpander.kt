@@ -0,0 +1,73 @@
+package callgraph
+
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.roots.ProjectFileIndex
+import com.intellij.psi.PsiCompiledElement
+import com.intellij.psi.PsiMethod
+
+class DownstreamExpander(
+        private val project: Project,
+        private val progressIndicator: ProgressIndicator?,
+        private val depthLimit: Int,
+        private val nodeBudget: Int
+) {
+    private val projectFileIndex = ProjectFileIndex.SERVICE.getInstance(this.project)
+
+    fun expand(methods: Set<PsiMethod>, onMethodProcessed: () -> Unit): Neighborhood {
+        val dependencies = mutableSetOf<Dependency>()
+        val truncatedMethods = mutableSetOf<PsiMethod>()
+        val seenMethods = methods.toMutableSet()
+        var frontier = methods
+        var depth = 0
+        // only the methods reached so far get their callees extracted, each method in a read action of its own, so
+        // editing is not held up for the whole expansion
+        while (frontier.isNotEmpty() && depth < this.depthLimit) {
+            val nextFrontier = mutableSetOf<PsiMethod>()
+            frontier.forEach { caller ->
+                this.progressIndicator?.checkCanceled()
+                val callees = Utils.runSmartReadActionYieldingToWrites(this.project, this.progressIndicator) {
+                    getCallees(caller)
+                } ?: return@forEach
+                onMethodProcessed()
+                callees.forEach { callee ->
+                    // once the budget is used up, only edges between already reached methods are kept
+                    if (seenMethods.contains(callee)) {
+                        dependencies.add(Dependency(caller, callee))
+                    } else if (seenMethods.size < this.nodeBudget) {
+                        seenMethods.add(callee)
+                        nextFrontier.add(callee)
+                        dependencies.add(Dependency(caller, callee))
+                    } else {
+                        truncatedMethods.add(caller)
+                    }
+                }
+            }
+            frontier = nextFrontier
+            depth++
+        }
+        // the frontier left behind by the depth limit, which is only cut off where it calls methods not reached yet
+        frontier
+                .filter { method ->
+                    Utils.runSmartReadActionYieldingToWrites(this.project, this.progressIndicator) {
+                        getCallees(method)?.any { !seenMethods.contains(it) } ?: false
+                    }
+                }
+                .forEach { truncatedMethods.add(it) }
+        return Neighborhood(dependencies, truncatedMethods)
+    }
+
+    private fun getCallees(method: PsiMethod): Set<PsiMethod>? {
+        // an edit made between two read actions may have removed the method
+        if (!method.isValid || !isInProjectSource(method)) {
+            return null
+        }
+        return CallSiteExtractor.getCachedCallees(method)
+    }
+
+    private fun isInProjectSource(method: PsiMethod): Boolean {
+        // library methods have no source to extract callees from
+        val file = method.containingFile?.virtualFile
+        return method !is PsiCompiledElement && file != null && this.projectFileIndex.isInContent(file)
+    }
+}
@@ -1,3 +1,3 @@
 package callgraph
 
-data class Edge(val id: String, val sourceNode: Node, val targetNode: Node)
+data class Edge(val sourceNode: Node, val targetNode: Node)
@@ -0,0 +1,238 @@
+package callgraph
+
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.openapi.progress.util.SensitiveProgressWrapper
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.psi.PsiFile
+import com.intellij.psi.PsiManager
+import com.intellij.psi.PsiMethod
+import com.intellij.psi.util.PsiModificationTracker
+import com.intellij.util.concurrency.AppExecutorUtil
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+// Streams source files through enumeration -> PSI load -> call extraction -> aggregation. The stages are connected by
+// bounded queues, so a fast stage waits for a slow one instead of piling up results. Each instance runs once.
+class ExtractionPipeline(
+        private val project: Project,
+        private val dependencyStore: PersistentDependencyStore,
+        private val progressIndicator: ProgressIndicator?
+) {
+    companion object {
+        private const val queueCapacity = 64
+        private val extractionWorkerCount = maxOf(1, Runtime.getRuntime().availableProcessors() - 1)
+        // file enumeration and PSI loading take one thread each, next to the extraction workers
+        private val executor =
+                AppExecutorUtil.createBoundedApplicationPoolExecutor("Call Graph Extraction", extractionWorkerCount + 2)
+    }
+
+    enum class Source { EXTRACTED, RESTORED, REMOVED }
+
+    // Results leave the read action they were extracted in, so they hold no PSI, only what the index and store need.
+    class FileDependencies(
+            val file: VirtualFile,
+            val methodEdges: List<DependencyIndex.MethodEdge>,
+            val calleeFiles: Set<VirtualFile>,
+            val storeEntry: PersistentDependencyStore.Entry?,
+            val source: Source,
+            val hasUnresolvedCalls: Boolean = false
+    )
+
+    private class LoadedFile(
+            val file: VirtualFile,
+            val psiFile: PsiFile,
+            val contentHash: String,
+            // of the whole PSI, when the file was loaded
+            val modificationCount: Long
+    )
+
+    private val endOfStream = Any()
+    private val fileQueue = ArrayBlockingQueue<Any>(queueCapacity)
+    private val loadedFileQueue = ArrayBlockingQueue<Any>(queueCapacity)
+    private val resultQueue = ArrayBlockingQueue<Any>(queueCapacity)
+    private val activeExtractionWorkers = AtomicInteger(extractionWorkerCount)
+    private val modificationTracker = PsiModificationTracker.SERVICE.getInstance(this.project)
+    @Volatile private var isStopped = false
+    @Volatile private var failure: Throwable? = null
+
+    fun run(
+            enumerateFiles: ((VirtualFile) -> Unit) -> Unit,
+            isRestoringFromStore: Boolean,
+            onMethodProcessed: () -> Unit,
+            aggregate: (FileDependencies) -> Unit
+    ) {
+        runStage {
+            enumerateFiles { put(this.fileQueue, it) }
+            put(this.fileQueue, this.endOfStream)
+        }
+        runStage { loadFiles(isRestoringFromStore) }
+        repeat(extractionWorkerCount) { runStage { extractDependencies(onMethodProcessed) } }
+
+        // aggregation runs on the calling thread, while the other stages keep going
+        try {
+            while (true) {
+                val item = this.resultQueue.poll(10, TimeUnit.MILLISECONDS)
+                if (item === this.endOfStream) {
+                    break
+                } else if (item != null) {
+                    aggregate(item as FileDependencies)
+                }
+                this.failure?.let { throw it }
+                this.progressIndicator?.checkCanceled()
+            }
+        } finally {
+            // stop whatever is left running if aggregation ended early
+            this.isStopped = true
+        }
+    }
+
+    private fun loadFiles(isRestoringFromStore: Boolean) {
+        val psiManager = PsiManager.getInstance(this.project)
+        val resolvedMethods = mutableMapOf<String, PsiMethod?>()
+        var resolvedModificationCount = this.modificationTracker.modificationCount
+        while (true) {
+            val item = take(this.fileQueue)
+            if (item === this.endOfStream) {
+                break
+            }
+            val file = item as VirtualFile
+            // the queues are never waited on inside a read action, or a pending write action would stall every stage,
+            // and the read action itself gives way to write actions, then goes through this file again
+            val loadedItem = Utils.runReadActionYieldingToWrites<Any>(this.progressIndicator) {
+                // methods resolved before a write action went through may have been edited away
+                val modificationCount = this.modificationTracker.modificationCount
+                if (modificationCount != resolvedModificationCount) {
+                    resolvedMethods.clear()
+                    resolvedModificationCount = modificationCount
+                }
+                val psiFile = if (file.isValid) psiManager.findFile(file) else null
+                if (psiFile == null) {
+                    FileDependencies(file, emptyList(), emptySet(), null, Source.REMOVED)
+                } else {
+                    val contentHash = this.dependencyStore.getContentHash(psiFile)
+                    val restoredEntry =
+                            if (isRestoringFromStore) this.dependencyStore.load(psiFile, contentHash, resolvedMethods)
+                            else null
+                    if (restoredEntry == null) {
+                        LoadedFile(file, psiFile, contentHash, modificationCount)
+                    } else {
+                        val (restoredDependencies, hasUnresolvedCalls) = restoredEntry
+                        FileDependencies(file, DependencyIndex.toMethodEdges(restoredDependencies),
+                                getCalleeFiles(restoredDependencies), null, Source.RESTORED, hasUnresolvedCalls)
+                    }
+                }
+            }
+            // restored files skip the extraction stage
+            if (loadedItem is LoadedFile) {
+                put(this.loadedFileQueue, loadedItem)
+            } else {
+                put(this.resultQueue, loadedItem)
+            }
+        }
+        put(this.loadedFileQueue, this.endOfStream)
+    }
+
+    private fun extractDependencies(onMethodProcessed: () -> Unit) {
+        while (true) {
+            val item = take(this.loadedFileQueue)
+            if (item === this.endOfStream) {
+                // leave the marker for the other workers, the last worker passes it on to the aggregation
+                put(this.loadedFileQueue, this.endOfStream)
+                if (this.activeExtractionWorkers.decrementAndGet() == 0) {
+                    put(this.resultQueue, this.endOfStream)
+                }
+                break
+            }
+            val loadedFile = item as LoadedFile
+            // methods done before a write action interrupted the read action are not extracted again, as long as
+            // nothing was edited in between
+            val dependenciesByMethod = mutableMapOf<PsiMethod, List<Dependency>>()
+            var contentHash = loadedFile.contentHash
+            var modificationCount = loadedFile.modificationCount
+            var hasUnresolvedCalls = false
+            val fileDependencies = Utils.runReadActionYieldingToWrites<FileDependencies?>(this.progressIndicator) {
+                // the file was edited since it was loaded, the invalidation tracker has it queued for the next build
+                if (!loadedFile.psiFile.isValid) {
+                    null
+                } else {
+                    // an edit anywhere may have invalidated a callee or changed what a call resolves to, so what was
+                    // done before it is stale
+                    if (this.modificationTracker.modificationCount != modificationCount) {
+                        dependenciesByMethod.clear()
+                        hasUnresolvedCalls = false
+                        contentHash = this.dependencyStore.getContentHash(loadedFile.psiFile)
+                        modificationCount = this.modificationTracker.modificationCount
+                    }
+                    val dependencies = Utils.getMethodsFromFiles(setOf(loadedFile.psiFile))
+                            .flatMap {
+                                dependenciesByMethod.getOrPut(it) {
+                                    onMethodProcessed()
+                                    Utils.getDependenciesFromMethod(it) { hasUnresolvedCalls = true }
+                                }
+                            }
+                            .toSet()
+                    FileDependencies(
+                            loadedFile.file,
+                            DependencyIndex.toMethodEdges(dependencies),
+                            getCalleeFiles(dependencies),
+                            this.dependencyStore.createEntry(contentHash, dependencies, hasUnresolvedCalls),
+                            Source.EXTRACTED,
+                            hasUnresolvedCalls
+                    )
+                }
+            }
+            if (fileDependencies != null) {
+                put(this.resultQueue, fileDependencies)
+            }
+        }
+    }
+
+    private fun getCalleeFiles(dependencies: Set<Dependency>) =
+            dependencies.mapNotNull { it.callee.containingFile?.virtualFile }.toSet()
+
+    private fun runStage(stage: () -> Unit) {
+        executor.execute {
+            try {
+                // runProcess would stop the indicator it is given once the stage returns, while the build goes on, so
+                // each stage runs under a wrapper that follows the build's indicator without owning it
+                ProgressManager.getInstance().executeProcessUnderProgress(
+                        Runnable { stage() },
+                        this.progressIndicator?.let { SensitiveProgressWrapper(it) }
+                )
+            } catch (e: Throwable) {
+                // the first failure stops every stage, and is rethrown by the aggregation
+                if (!this.isStopped) {
+                    this.failure = e
+                    this.isStopped = true
+                }
+            }
+        }
+    }
+
+    private fun put(queue: ArrayBlockingQueue<Any>, item: Any) {
+        while (!queue.offer(item, 10, TimeUnit.MILLISECONDS)) {
+            checkStopped()
+        }
+    }
+
+    private fun take(queue: ArrayBlockingQueue<Any>): Any {
+        while (true) {
+            val item = queue.poll(10, TimeUnit.MILLISECONDS)
+            if (item != null) {
+                return item
+            }
+            checkStopped()
+        }
+    }
+
+    private fun checkStopped() {
+        if (this.isStopped) {
+            throw ProcessCanceledException()
+        }
+        this.progressIndicator?.checkCanceled()
+    }
+}
@@ -1,75 +1,116 @@
 package callgraph
 
-import com.intellij.psi.PsiElement
 import com.intellij.psi.PsiMethod
+import gnu.trove.THashMap
+import gnu.trove.TIntLongHashMap
+import gnu.trove.TIntObjectHashMap
+import gnu.trove.TLongHashSet
+import gnu.trove.TLongIntHashMap
+import gnu.trove.TLongObjectHashMap
 import java.util.*
 
-data class Graph(
-        val nodesMap: MutableMap<String, Node> = mutableMapOf(),
-        val edgesMap: MutableMap<String, Edge> = mutableMapOf()
-) {
-    val connectedComponents: Set<Graph> by lazy {
-        val visitedNodes = mutableSetOf<Node>()
-        this.getNodes()
-                .map { traverseBfs(it, visitedNodes) }
-                .filter { it.isNotEmpty() }
-                .map { component ->
-                    val componentNodes = this.nodesMap.filterValues { component.contains(it) }.toMutableMap()
-                    val componentEdges = this.edgesMap.filterValues {
-                        component.contains(it.sourceNode) || component.contains(it.targetNode)
-                    }.toMutableMap()
-                    Graph(componentNodes, componentEdges)
-                }
-                .toSet()
-    }
+class Graph(val attributes: NodeAttributes = NodeAttributes()) {
+    private val nodesMap = TLongObjectHashMap<Node>()
+    // nodes and edges in insertion order, handed out through read-only views that follow later additions
+    private val nodes = mutableListOf<Node>()
+    private val edges = mutableListOf<Edge>()
+    private val nodesView = Collections.unmodifiableList(this.nodes)
+    private val edgesView = Collections.unmodifiableList(this.edges)
+    // finds the nodes of methods without computing their fingerprint
+    private val nodesByMethod = THashMap<PsiMethod, Node>()
 
-    fun addNode(method: PsiMethod) {
-        val nodeId = getNodeHash(method)
-        if (!this.nodesMap.containsKey(nodeId)) {
-            val node = Node(nodeId, method)
-            this.nodesMap[nodeId] = node
+    // union-find over the edges, then a single pass that deals nodes and edges out to their components
+    fun getConnectedComponents(): List<Graph> {
+        val nodeIndices = TLongIntHashMap(this.nodes.size)
+        this.nodes.forEachIndexed { index, node -> nodeIndices.put(node.id, index) }
+        val parents = IntArray(this.nodes.size) { it }
+        this.edges.forEach {
+            val sourceRoot = findRoot(parents, nodeIndices.get(it.sourceNode.id))
+            val targetRoot = findRoot(parents, nodeIndices.get(it.targetNode.id))
+            if (sourceRoot != targetRoot) {
+                parents[sourceRoot] = targetRoot
+            }
+        }
+        val componentsByRoot = TIntObjectHashMap<Graph>()
+        val smallestNodeIdsByRoot = TIntLongHashMap()
+        this.nodes.forEachIndexed { index, node ->
+            val root = findRoot(parents, index)
+            val component = componentsByRoot.get(root) ?: Graph().also { componentsByRoot.put(root, it) }
+            component.nodesMap.put(node.id, node)
+            component.nodes.add(node)
+            if (!smallestNodeIdsByRoot.containsKey(root) || node.id < smallestNodeIdsByRoot.get(root)) {
+                smallestNodeIdsByRoot.put(root, node.id)
+            }
+        }
+        this.edges.forEach {
+            componentsByRoot.get(findRoot(parents, nodeIndices.get(it.sourceNode.id))).edges.add(it)
         }
+        // ordered by their smallest node id rather than by hash, so the same graph is always laid out the same way
+        return componentsByRoot.keys()
+                .sortedBy { smallestNodeIdsByRoot.get(it) }
+                .map { componentsByRoot.get(it) }
     }
 
-    fun addEdge(sourceMethod: PsiMethod, targetMethod: PsiMethod) {
-        val sourceNodeId = getNodeHash(sourceMethod)
-        val targetNodeId = getNodeHash(targetMethod)
-        val edgeId = getEdgeHash(sourceNodeId, targetNodeId)
-        if (!this.edgesMap.containsKey(edgeId)) {
-            val sourceNode = this.nodesMap.getValue(sourceNodeId)
-            val targetNode = this.nodesMap.getValue(targetNodeId)
-            val edge = Edge(edgeId, sourceNode, targetNode)
-            this.edgesMap[edgeId] = edge
+    fun addNode(node: Node) {
+        this.nodesMap.put(node.id, node)
+        this.nodes.add(node)
+        this.nodesByMethod[node.method] = node
+    }
+
+    fun addEdge(sourceNode: Node, targetNode: Node) {
+        if (!sourceNode.hasOutEdge(targetNode.id)) {
+            val edge = Edge(sourceNode, targetNode)
+            this.edges.add(edge)
             sourceNode.addOutEdge(edge)
             targetNode.addInEdge(edge)
         }
     }
 
-    fun getNode(nodeId: String) = this.nodesMap.getValue(nodeId)
+    // falls back to the fingerprint for a method whose PSI was reloaded since the graph was built
+    fun findNode(method: PsiMethod): Node? =
+            this.nodesByMethod[method] ?: this.nodesMap.get(Utils.getMethodFingerprint(method))
 
-    fun getNodes() = this.nodesMap.values.toSet()
+    fun findNode(nodeId: Long): Node? = this.nodesMap.get(nodeId)
 
-    fun getEdges() = this.edgesMap.values.toSet()
+    fun hasEdge(sourceNodeId: Long, targetNodeId: Long) = findNode(sourceNodeId)?.hasOutEdge(targetNodeId) ?: false
 
-    private fun traverseBfs(root: Node, visitedNodes: MutableSet<Node>): Set<Node> {
-        if (visitedNodes.contains(root)) {
-            return Collections.emptySet()
+    fun removeEdge(sourceNodeId: Long, targetNodeId: Long) {
+        val edge = findNode(sourceNodeId)?.removeOutEdge(targetNodeId) ?: return
+        edge.targetNode.removeInEdge(sourceNodeId)
+        this.edges.remove(edge)
+    }
+
+    fun removeNodes(nodeIds: TLongHashSet) {
+        if (nodeIds.isEmpty) {
+            return
         }
-        val path = mutableSetOf<Node>()
-        val queue = mutableSetOf(root)
-        while (queue.isNotEmpty()) {
-            visitedNodes.addAll(queue)
-            path.addAll(queue)
-            val newQueue = queue
-                    .flatMap { it.getNeighbors() }
-                    .filter { !visitedNodes.contains(it) }
-            queue.clear()
-            queue.addAll(newQueue)
+        val removedNodes = this.nodes.filter { nodeIds.contains(it.id) }
+        removedNodes.forEach { node ->
+            node.outEdges.toList().forEach { removeEdge(node.id, it.targetNode.id) }
+            node.inEdges.toList().forEach { removeEdge(it.sourceNode.id, node.id) }
+            this.nodesMap.remove(node.id)
+            this.nodesByMethod.remove(node.method)
+            // nodes of connected components keep the slots of the graph they were taken from
+            if (node.attributes === this.attributes) {
+                this.attributes.release(node.attributeSlot)
+            }
         }
-        return path
+        this.nodes.removeAll(removedNodes.toSet())
     }
 
-    private fun getNodeHash(element: PsiElement) = element.hashCode().toString()
+    fun getNode(nodeId: Long): Node = this.nodesMap.get(nodeId)
+
+    fun getNodes(): List<Node> = this.nodesView
+
+    fun getEdges(): List<Edge> = this.edgesView
 
-    private fun getEdgeHash(sourceNodeId: String, targetNodeId: String) = "$sourceNodeId-$targetNodeId"
+    private fun findRoot(parents: IntArray, index: Int): Int {
+        var current = index
+        while (parents[current] != current) {
+            // path halving, which keeps the trees flat without a second pass
+            parents[current] = parents[parents[current]]
+            current = parents[current]
+        }
+        return current
+    }
 }
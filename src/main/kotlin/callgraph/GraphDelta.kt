@@ -0,0 +1,112 @@
+package callgraph
+
+import gnu.trove.TLongArrayList
+import gnu.trove.TLongHashSet
+
+// Difference between the graph on the canvas and a fresh build of the same view, keyed by node id. It is computed
+// in the background and applied to the displayed graph on the EDT, so the nodes both builds share keep their layout.
+class GraphDelta(
+        // nodes of the built graph, which are copied into the displayed graph along with their attributes
+        private val addedNodes: List<Node>,
+        // nodes whose method was reloaded or whose attributes changed since the displayed build, swapped in at the
+        // position of the old node
+        private val replacedNodes: List<Node>,
+        private val attributes: NodeAttributes,
+        private val removedNodeIds: TLongHashSet,
+        // edges as parallel lists of source and target node ids
+        private val addedEdgeSourceIds: TLongArrayList,
+        private val addedEdgeTargetIds: TLongArrayList,
+        private val removedEdgeSourceIds: TLongArrayList,
+        private val removedEdgeTargetIds: TLongArrayList,
+        private val truncatedNodeIds: TLongHashSet
+) {
+    companion object {
+        fun compute(displayedGraph: Graph, builtGraph: Graph): GraphDelta {
+            val addedNodes = builtGraph.getNodes().filter { displayedGraph.findNode(it.id) == null }
+            val replacedNodes = builtGraph.getNodes().filter {
+                val displayedNode = displayedGraph.findNode(it.id)
+                // a method edited in place keeps its PSI, but may have changed modifiers or parameter names
+                displayedNode != null && (displayedNode.method !== it.method ||
+                        !displayedNode.attributes.isSame(displayedNode.attributeSlot, it.attributes, it.attributeSlot))
+            }
+            val removedNodeIds = TLongHashSet()
+            displayedGraph.getNodes()
+                    .filter { builtGraph.findNode(it.id) == null }
+                    .forEach { removedNodeIds.add(it.id) }
+            val addedEdgeSourceIds = TLongArrayList()
+            val addedEdgeTargetIds = TLongArrayList()
+            // replaced nodes lose their edges along with the old node, so those are added again as well
+            val replacedNodeIds = TLongHashSet()
+            replacedNodes.forEach { replacedNodeIds.add(it.id) }
+            builtGraph.getEdges()
+                    .filter {
+                        !displayedGraph.hasEdge(it.sourceNode.id, it.targetNode.id) ||
+                                replacedNodeIds.contains(it.sourceNode.id) || replacedNodeIds.contains(it.targetNode.id)
+                    }
+                    .forEach {
+                        addedEdgeSourceIds.add(it.sourceNode.id)
+                        addedEdgeTargetIds.add(it.targetNode.id)
+                    }
+            // edges of removed nodes go along with them
+            val removedEdgeSourceIds = TLongArrayList()
+            val removedEdgeTargetIds = TLongArrayList()
+            displayedGraph.getEdges()
+                    .filter { !builtGraph.hasEdge(it.sourceNode.id, it.targetNode.id) }
+                    .forEach {
+                        removedEdgeSourceIds.add(it.sourceNode.id)
+                        removedEdgeTargetIds.add(it.targetNode.id)
+                    }
+            val truncatedNodeIds = TLongHashSet()
+            builtGraph.getNodes()
+                    .filter { it.isTruncated }
+                    .forEach { truncatedNodeIds.add(it.id) }
+            return GraphDelta(
+                    addedNodes,
+                    replacedNodes,
+                    builtGraph.attributes,
+                    removedNodeIds,
+                    addedEdgeSourceIds,
+                    addedEdgeTargetIds,
+                    removedEdgeSourceIds,
+                    removedEdgeTargetIds,
+                    truncatedNodeIds
+            )
+        }
+    }
+
+    fun applyTo(graph: Graph) {
+        for (index in 0 until this.removedEdgeSourceIds.size()) {
+            graph.removeEdge(this.removedEdgeSourceIds.getQuick(index), this.removedEdgeTargetIds.getQuick(index))
+        }
+        graph.removeNodes(this.removedNodeIds)
+        // the nodes of the built graph already carry its edges, so fresh ones are created
+        val addedNodes = this.addedNodes.map { copyNode(it, graph) }
+        val replacedNodes = this.replacedNodes.map { copyNode(it, graph) }
+        replacedNodes.forEach { replacedNode ->
+            graph.findNode(replacedNode.id)?.let {
+                replacedNode.point.setLocation(it.point)
+                replacedNode.rawLayoutPoint.setLocation(it.rawLayoutPoint)
+            }
+        }
+        val replacedNodeIds = TLongHashSet()
+        replacedNodes.forEach { replacedNodeIds.add(it.id) }
+        graph.removeNodes(replacedNodeIds)
+        replacedNodes.forEach { graph.addNode(it) }
+        addedNodes.forEach { graph.addNode(it) }
+        for (index in 0 until this.addedEdgeSourceIds.size()) {
+            graph.addEdge(
+                    graph.getNode(this.addedEdgeSourceIds.getQuick(index)),
+                    graph.getNode(this.addedEdgeTargetIds.getQuick(index))
+            )
+        }
+        graph.getNodes().forEach { it.isTruncated = this.truncatedNodeIds.contains(it.id) }
+        // only the new nodes are placed, next to the nodes they are connected to
+        Utils.placeNodes(graph, addedNodes)
+    }
+
+    private fun copyNode(node: Node, graph: Graph) =
+            node.copy(
+                    attributes = graph.attributes,
+                    attributeSlot = graph.attributes.copy(this.attributes, node.attributeSlot)
+            )
+}
@@ -0,0 +1,70 @@
+package callgraph
+
+import com.intellij.openapi.project.Project
+import com.intellij.psi.PsiMethod
+import gnu.trove.THashMap
+import gnu.trove.TLongArrayList
+import gnu.trove.TLongHashSet
+
+// Everything a graph is assembled from, read off the PSI inside a read action. Assembling the graph and laying it out
+// from the snapshot touches no PSI, so it can run without holding the read lock.
+class GraphSnapshot(project: Project) {
+    private val nodesByMethod = THashMap<PsiMethod, Node>()
+    private val nodes = mutableListOf<Node>()
+    // edges as parallel lists of source and target node ids
+    private val edgeSourceIds = TLongArrayList()
+    private val edgeTargetIds = TLongArrayList()
+    private val truncatedNodeIds = TLongHashSet()
+    private val attributes = NodeAttributes()
+    private val contentRoots = ContentRootCache(project)
+
+    // called inside a read action
+    fun addMethod(method: PsiMethod): Long {
+        val existingNode = this.nodesByMethod[method]
+        if (existingNode != null) {
+            return existingNode.id
+        }
+        val node = Node(
+                Utils.getMethodFingerprint(method),
+                method,
+                method.name,
+                this.attributes,
+                this.attributes.add(method, this.contentRoots)
+        )
+        this.nodesByMethod[method] = node
+        this.nodes.add(node)
+        return node.id
+    }
+
+    // called inside a read action
+    fun addDependency(dependency: Dependency) {
+        this.edgeSourceIds.add(addMethod(dependency.caller))
+        this.edgeTargetIds.add(addMethod(dependency.callee))
+    }
+
+    // called inside a read action
+    fun markTruncated(method: PsiMethod) {
+        this.truncatedNodeIds.add(addMethod(method))
+    }
+
+    fun toGraph(): Graph {
+        val graph = Graph(this.attributes)
+        // methods with the same fingerprint end up as one node
+        this.nodes.forEach {
+            if (graph.findNode(it.id) == null) {
+                graph.addNode(it)
+            }
+        }
+        for (index in 0 until this.edgeSourceIds.size()) {
+            graph.addEdge(
+                    graph.getNode(this.edgeSourceIds.getQuick(index)),
+                    graph.getNode(this.edgeTargetIds.getQuick(index))
+            )
+        }
+        this.truncatedNodeIds.forEach {
+            graph.getNode(it).isTruncated = true
+            true
+        }
+        return graph
+    }
+}
@@ -0,0 +1,67 @@
+package callgraph
+
+import com.intellij.psi.PsiMethod
+import com.intellij.psi.SmartPsiElementPointer
+import gnu.trove.TIntArrayList
+import gnu.trove.TIntIntHashMap
+import gnu.trove.TLongArrayList
+import gnu.trove.TLongIntHashMap
+
+// Maps methods to dense int ids, so edges can be stored as two ids packed into a long. Methods are looked up by
+// fingerprint and held through smart pointers, so the table pins no PSI, and a method keeps its id when its file is
+// reparsed. Ids are reference counted, and the id of a method no edge refers to anymore is reused.
+class MethodSymbolTable {
+    companion object {
+        fun packEdge(callerId: Int, calleeId: Int) = (callerId.toLong() shl 32) or (calleeId.toLong() and 0xffffffffL)
+
+        fun getCallerId(edge: Long) = (edge ushr 32).toInt()
+
+        fun getCalleeId(edge: Long) = edge.toInt()
+    }
+
+    private val idsByFingerprint = TLongIntHashMap()
+    private val fingerprints = TLongArrayList()
+    private val methods = mutableListOf<SmartPsiElementPointer<PsiMethod>?>()
+    private val referenceCounts = TIntIntHashMap()
+    private val freeIds = TIntArrayList()
+
+    // one past the highest id handed out so far
+    val capacity get() = this.methods.size
+
+    // the pointer is only kept if the method has no id yet
+    fun acquire(fingerprint: Long, pointer: SmartPsiElementPointer<PsiMethod>): Int {
+        var id = getId(fingerprint)
+        if (id < 0) {
+            if (this.freeIds.isEmpty()) {
+                id = this.methods.size
+                this.methods.add(pointer)
+                this.fingerprints.add(fingerprint)
+            } else {
+                id = this.freeIds.remove(this.freeIds.size() - 1)
+                this.methods[id] = pointer
+                this.fingerprints.set(id, fingerprint)
+            }
+            this.idsByFingerprint.put(fingerprint, id)
+        }
+        this.referenceCounts.adjustOrPutValue(id, 1, 1)
+        return id
+    }
+
+    fun release(id: Int) {
+        if (this.referenceCounts.adjustOrPutValue(id, -1, 0) <= 0) {
+            this.referenceCounts.remove(id)
+            this.idsByFingerprint.remove(this.fingerprints.getQuick(id))
+            this.methods[id] = null
+            this.freeIds.add(id)
+        }
+    }
+
+    // called inside a read action, -1 if no edge refers to the method
+    fun getId(method: PsiMethod) = getId(Utils.getMethodFingerprint(method))
+
+    // called inside a read action, null if the method was edited away since its file was last indexed
+    fun getMethod(id: Int) = this.methods[id]?.element
+
+    private fun getId(fingerprint: Long) =
+            if (this.idsByFingerprint.containsKey(fingerprint)) this.idsByFingerprint.get(fingerprint) else -1
+}
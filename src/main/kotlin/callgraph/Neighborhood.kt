@@ -0,0 +1,12 @@
+package callgraph
+
+import com.intellij.psi.PsiMethod
+
+// The dependencies around some methods, plus the reached methods whose further callers or callees were cut off by the
+// depth limit or the node budget
+data class Neighborhood(val dependencies: Set<Dependency>, val truncatedMethods: Set<PsiMethod>) {
+    fun union(other: Neighborhood) = Neighborhood(
+            this.dependencies.union(other.dependencies),
+            this.truncatedMethods.union(other.truncatedMethods)
+    )
+}
@@ -1,32 +1,70 @@
 package callgraph
 
 import com.intellij.psi.PsiMethod
+import gnu.trove.TLongObjectHashMap
 import java.awt.geom.Point2D
 
-data class Node(val id: String, val method: PsiMethod) {
-    val outEdges = mutableMapOf<String, Edge>()
-    val inEdges = mutableMapOf<String, Edge>()
-    val filePath = Utils.getMethodFilePath(method) ?: "(no file)"
-    val packageName = Utils.getMethodPackageName(method)
-    val signature = Utils.getMethodSignature(method)
+data class Node(
+        val id: Long,
+        val method: PsiMethod,
+        val name: String,
+        // the attributes of the graph the node is in, and its slot in them
+        val attributes: NodeAttributes,
+        val attributeSlot: Int
+) {
+    // labels are only built once they are first drawn, most nodes never show all of them
+    private var cachedFilePath: String? = null
+    private var cachedSignature: String? = null
+    val filePath: String
+        get() = this.cachedFilePath
+                ?: (this.attributes.getFilePath(this.attributeSlot) ?: "(no file)").also { this.cachedFilePath = it }
+    val packageName: String
+        get() = this.attributes.getPackageLabel(this.attributeSlot)
+    val signature: String
+        get() = this.cachedSignature
+                ?: (this.name + this.attributes.getParameterList(this.attributeSlot)).also { this.cachedSignature = it }
+
+    // edges are keyed by the node at the other end, so duplicates are caught without building an edge key
+    private val outEdgesByTargetId = TLongObjectHashMap<Edge>()
+    private val inEdgesBySourceId = TLongObjectHashMap<Edge>()
+    val outEdges = mutableListOf<Edge>()
+    val inEdges = mutableListOf<Edge>()
     val point = Point2D.Float()
     val rawLayoutPoint = Point2D.Float()
+    // the node has callers or callees left out by the depth limit or the node budget
+    var isTruncated = false
+
+    fun hasOutEdge(targetNodeId: Long) = this.outEdgesByTargetId.containsKey(targetNodeId)
 
     fun addInEdge(edge: Edge) {
-        if (!this.inEdges.containsKey(edge.id)) {
-            this.inEdges[edge.id] = edge
+        if (!this.inEdgesBySourceId.containsKey(edge.sourceNode.id)) {
+            this.inEdgesBySourceId.put(edge.sourceNode.id, edge)
+            this.inEdges.add(edge)
         }
     }
 
     fun addOutEdge(edge: Edge) {
-        if (!this.outEdges.containsKey(edge.id)) {
-            this.outEdges[edge.id] = edge
+        if (!this.outEdgesByTargetId.containsKey(edge.targetNode.id)) {
+            this.outEdgesByTargetId.put(edge.targetNode.id, edge)
+            this.outEdges.add(edge)
         }
     }
 
+    fun removeInEdge(sourceNodeId: Long): Edge? {
+        val edge = this.inEdgesBySourceId.remove(sourceNodeId) ?: return null
+        this.inEdges.remove(edge)
+        return edge
+    }
+
+    fun removeOutEdge(targetNodeId: Long): Edge? {
+        val edge = this.outEdgesByTargetId.remove(targetNodeId) ?: return null
+        this.outEdges.remove(edge)
+        return edge
+    }
+
     fun getNeighbors(): List<Node> {
-        val upstreamNodes = this.inEdges.values.map { it.sourceNode }
-        val downstreamNodes = this.outEdges.values.map { it.targetNode }
+        val upstreamNodes = this.inEdges.map { it.sourceNode }
+        val downstreamNodes = this.outEdges.map { it.targetNode }
         return upstreamNodes.union(downstreamNodes).toList()
     }
 }
@@ -0,0 +1,177 @@
+package callgraph
+
+import com.intellij.psi.PsiJavaFile
+import com.intellij.psi.PsiMethod
+import com.intellij.psi.PsiModifier
+import gnu.trove.TByteArrayList
+import gnu.trove.TIntArrayList
+import gnu.trove.TObjectIntHashMap
+import java.util.*
+
+// Per-node attributes used for filtering, coloring and labels, read off the PSI once and stored column by column. Each
+// node owns a slot in the columns of its graph, which is reused once the node is removed. Names are interned, so nodes
+// refer to them by id, and the labels built from them share the interned strings.
+class NodeAttributes {
+    companion object {
+        // access levels are indices into this list, or noAccessLevel for methods with none of these modifiers
+        val accessModifiers = listOf(
+                PsiModifier.PUBLIC,
+                PsiModifier.PROTECTED,
+                PsiModifier.PACKAGE_LOCAL,
+                PsiModifier.PRIVATE
+        )
+        const val noAccessLevel = -1
+        // class id of methods outside of any named class
+        const val noClassId = -1
+        // directory id of files outside of the content roots
+        private const val noDirectoryId = -1
+    }
+
+    private val accessLevels = TByteArrayList()
+    private val externalFlags = BitSet()
+    private val classIds = TIntArrayList()
+    private val packageIds = TIntArrayList()
+    private val directoryIds = TIntArrayList()
+    private val fileNameIds = TIntArrayList()
+    private val parameterListIds = TIntArrayList()
+    private val classNames = NamePool()
+    private val packageNames = NamePool()
+    // directory paths relative to their content root
+    private val directoryPaths = NamePool()
+    private val fileNames = NamePool()
+    // parameter names of the signature labels, overloads across the code base often share them
+    private val parameterLists = NamePool()
+    // slots of removed nodes, filled again before the columns grow
+    private val freeSlots = TIntArrayList()
+
+    private class NamePool {
+        private val idsByName = TObjectIntHashMap<String>()
+        private val names = mutableListOf<String>()
+
+        fun getId(name: String): Int {
+            if (this.idsByName.containsKey(name)) {
+                return this.idsByName.get(name)
+            }
+            this.idsByName.put(name, this.names.size)
+            this.names.add(name)
+            return this.names.size - 1
+        }
+
+        fun getName(id: Int) = this.names[id]
+    }
+
+    // called inside a read action, returns the slot of the new node
+    fun add(method: PsiMethod, contentRoots: ContentRootCache): Int {
+        val file = method.containingFile
+        val virtualFile = file?.virtualFile
+        val className = method.containingClass?.qualifiedName
+        return add(
+                accessModifiers.indexOfFirst { method.modifierList.hasModifierProperty(it) },
+                virtualFile == null || contentRoots.getContentRoot(virtualFile) == null,
+                className,
+                (file as? PsiJavaFile)?.packageName ?: "",
+                if (virtualFile == null) null else contentRoots.getRelativeDirectoryPath(virtualFile),
+                virtualFile?.name ?: "",
+                Utils.getMethodParameterList(method)
+        )
+    }
+
+    // copies the attributes in a slot of another graph into a new slot of this one
+    fun copy(attributes: NodeAttributes, slot: Int) =
+            add(
+                    attributes.getAccessLevel(slot),
+                    attributes.isExternal(slot),
+                    attributes.getClassName(slot),
+                    attributes.getPackageName(slot),
+                    attributes.getDirectoryPath(slot),
+                    attributes.fileNames.getName(attributes.fileNameIds.getQuick(slot)),
+                    attributes.getParameterList(slot)
+            )
+
+    fun release(slot: Int) {
+        this.freeSlots.add(slot)
+    }
+
+    // whether a slot holds the same attributes as a slot of another graph, names being compared by value
+    fun isSame(slot: Int, attributes: NodeAttributes, otherSlot: Int) =
+            getAccessLevel(slot) == attributes.getAccessLevel(otherSlot) &&
+                    isExternal(slot) == attributes.isExternal(otherSlot) &&
+                    getClassName(slot) == attributes.getClassName(otherSlot) &&
+                    getPackageName(slot) == attributes.getPackageName(otherSlot) &&
+                    getFilePath(slot) == attributes.getFilePath(otherSlot) &&
+                    getParameterList(slot) == attributes.getParameterList(otherSlot)
+
+    fun getAccessLevel(slot: Int) = this.accessLevels.getQuick(slot).toInt()
+
+    // not under a content root of the project, such as library methods
+    fun isExternal(slot: Int) = this.externalFlags.get(slot)
+
+    fun getClassId(slot: Int) = this.classIds.getQuick(slot)
+
+    fun getClassName(slot: Int): String? {
+        val classId = getClassId(slot)
+        return if (classId == noClassId) null else this.classNames.getName(classId)
+    }
+
+    fun getPackageId(slot: Int) = this.packageIds.getQuick(slot)
+
+    fun getPackageName(slot: Int) = this.packageNames.getName(getPackageId(slot))
+
+    // the qualified class name, which is shared by all methods of the class
+    fun getPackageLabel(slot: Int): String {
+        val packageName = getPackageName(slot)
+        val className = getClassName(slot) ?: ""
+        return if (packageName.isBlank() || className.startsWith(packageName)) className else "$packageName.$className"
+    }
+
+    // the path of the file relative to its content root, null outside of the content roots
+    fun getFilePath(slot: Int): String? {
+        val directoryPath = getDirectoryPath(slot) ?: return null
+        val fileName = this.fileNames.getName(this.fileNameIds.getQuick(slot))
+        return if (directoryPath.isEmpty()) fileName else "$directoryPath/$fileName"
+    }
+
+    // parameter names in parentheses, or empty for methods without parameters
+    fun getParameterList(slot: Int) = this.parameterLists.getName(this.parameterListIds.getQuick(slot))
+
+    private fun getDirectoryPath(slot: Int): String? {
+        val directoryId = this.directoryIds.getQuick(slot)
+        return if (directoryId == noDirectoryId) null else this.directoryPaths.getName(directoryId)
+    }
+
+    private fun add(
+            accessLevel: Int,
+            isExternal: Boolean,
+            className: String?,
+            packageName: String,
+            directoryPath: String?,
+            fileName: String,
+            parameterList: String
+    ): Int {
+        val classId = if (className == null) noClassId else this.classNames.getId(className)
+        val packageId = this.packageNames.getId(packageName)
+        val directoryId = if (directoryPath == null) noDirectoryId else this.directoryPaths.getId(directoryPath)
+        val fileNameId = this.fileNames.getId(fileName)
+        val parameterListId = this.parameterLists.getId(parameterList)
+        if (!this.freeSlots.isEmpty()) {
+            val slot = this.freeSlots.remove(this.freeSlots.size() - 1)
+            this.accessLevels.set(slot, accessLevel.toByte())
+            this.externalFlags.set(slot, isExternal)
+            this.classIds.set(slot, classId)
+            this.packageIds.set(slot, packageId)
+            this.directoryIds.set(slot, directoryId)
+            this.fileNameIds.set(slot, fileNameId)
+            this.parameterListIds.set(slot, parameterListId)
+            return slot
+        }
+        val slot = this.accessLevels.size()
+        this.accessLevels.add(accessLevel.toByte())
+        this.externalFlags.set(slot, isExternal)
+        this.classIds.add(classId)
+        this.packageIds.add(packageId)
+        this.directoryIds.add(directoryId)
+        this.fileNameIds.add(fileNameId)
+        this.parameterListIds.add(parameterListId)
+        return slot
+    }
+}
@@ -0,0 +1,171 @@
+package callgraph
+
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.application.PathManager
+import com.intellij.openapi.project.Project
+import com.intellij.psi.JavaPsiFacade
+import com.intellij.psi.PsiFile
+import com.intellij.psi.PsiMethod
+import com.intellij.psi.search.GlobalSearchScope
+import java.io.File
+import java.io.IOException
+import java.security.MessageDigest
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+// The snapshot is written once, when the project is closed, so builds never pay for rewriting it.
+class PersistentDependencyStore(private val project: Project) : Disposable {
+    private val snapshotFile = getSnapshotFile(project)
+    // the snapshot is mapped, so it is only read under the lock, and released under it before the file is replaced
+    private val snapshotLock = ReentrantReadWriteLock()
+    private var snapshot = CallGraphSnapshot.open(this.snapshotFile)
+    // a corrupted snapshot is treated as missing, every file is parsed and the snapshot written again
+    @Volatile private var isSnapshotCorrupted = false
+    // files extracted or removed since the snapshot was written, null meaning the file has no entry anymore
+    private val pendingEntries = mutableMapOf<String, Entry?>()
+
+    class Entry(
+            val contentHash: String,
+            val hasUnresolvedCalls: Boolean,
+            val methodKeyPairs: List<Pair<String, String>>
+    )
+
+    fun getContentHash(file: PsiFile): String {
+        // the view provider text includes unsaved editor changes, without building the PSI tree
+        val digest = MessageDigest.getInstance("SHA-1").digest(file.viewProvider.contents.toString().toByteArray())
+        return digest.joinToString("") { String.format("%02x", it) }
+    }
+
+    // The restored dependencies come with whether the file had calls that did not resolve when it was extracted.
+    fun load(
+            file: PsiFile,
+            contentHash: String,
+            resolvedMethods: MutableMap<String, PsiMethod?>
+    ): Pair<Set<Dependency>, Boolean>? {
+        val path = file.virtualFile?.path ?: return null
+        // only the record of the requested file is decoded, the rest of the snapshot stays encoded
+        val (methodKeyPairs, hasUnresolvedCalls) = this.snapshotLock.read {
+            val snapshot = this.snapshot
+            if (snapshot == null || this.isSnapshotCorrupted) {
+                return null
+            }
+            val fileIndex = snapshot.findFile(path)
+            if (fileIndex < 0 || snapshot.getContentHash(fileIndex) != contentHash) {
+                return null
+            }
+            try {
+                readMethodKeyPairs(snapshot, fileIndex) to snapshot.hasUnresolvedCalls(fileIndex)
+            } catch (e: IllegalStateException) {
+                this.isSnapshotCorrupted = true
+                return null
+            }
+        }
+        val dependencies = mutableSetOf<Dependency>()
+        methodKeyPairs.forEach { (callerKey, calleeKey) ->
+            // a caller that no longer resolves means the stored entry is unusable, so parse the file again
+            val caller = resolveMethodKey(callerKey, resolvedMethods) ?: return null
+            val callee = resolveMethodKey(calleeKey, resolvedMethods)
+            if (callee != null) {
+                dependencies.add(Dependency(caller, callee))
+            }
+        }
+        return dependencies to hasUnresolvedCalls
+    }
+
+    fun createEntry(contentHash: String, dependencies: Set<Dependency>, hasUnresolvedCalls: Boolean): Entry? {
+        val methodKeyPairs = dependencies.map { Utils.getMethodKey(it.caller) to Utils.getMethodKey(it.callee) }
+        // methods of local and anonymous classes have no stable key, so such files are always parsed
+        return if (methodKeyPairs.any { (callerKey, calleeKey) -> callerKey == null || calleeKey == null }) null
+        else Entry(contentHash, hasUnresolvedCalls,
+                methodKeyPairs.map { (callerKey, calleeKey) -> callerKey!! to calleeKey!! })
+    }
+
+    @Synchronized
+    fun put(path: String, entry: Entry?) {
+        this.pendingEntries[path] = entry
+    }
+
+    @Synchronized
+    fun remove(path: String) {
+        this.pendingEntries[path] = null
+    }
+
+    @Synchronized
+    override fun dispose() {
+        this.snapshotLock.write {
+            val snapshot = this.snapshot
+            this.snapshot = null
+            val writer =
+                    if (this.pendingEntries.isEmpty()) null
+                    else createWriter(if (this.isSnapshotCorrupted) null else snapshot)
+            this.pendingEntries.clear()
+            // the mapping is released before the file is replaced, whether or not there is anything to write
+            snapshot?.close()
+            try {
+                writer?.write(this.snapshotFile)
+            } catch (e: IOException) {
+                // the old snapshot stays, its entries are still checked against the content hash of the files
+            }
+        }
+    }
+
+    private fun createWriter(snapshot: CallGraphSnapshot?): CallGraphSnapshot.Writer {
+        // carry over the untouched files of the current snapshot that still exist, then add the new entries
+        val writer = CallGraphSnapshot.Writer()
+        if (snapshot != null) {
+            try {
+                (0 until snapshot.fileCount)
+                        .filter {
+                            val path = snapshot.getPath(it)
+                            !this.pendingEntries.containsKey(path) && File(path).isFile
+                        }
+                        .forEach {
+                            writer.addFile(snapshot.getPath(it), snapshot.getContentHash(it),
+                                    snapshot.hasUnresolvedCalls(it), readMethodKeyPairs(snapshot, it))
+                        }
+            } catch (e: IllegalStateException) {
+                // a corrupted snapshot is not carried over, those files are parsed again next session
+                writer.clear()
+            }
+        }
+        this.pendingEntries.forEach { (path, entry) ->
+            if (entry != null) {
+                writer.addFile(path, entry.contentHash, entry.hasUnresolvedCalls, entry.methodKeyPairs)
+            }
+        }
+        return writer
+    }
+
+    private fun readMethodKeyPairs(snapshot: CallGraphSnapshot, fileIndex: Int): List<Pair<String, String>> {
+        val methodKeyPairs = mutableListOf<Pair<String, String>>()
+        snapshot.forEachEdge(fileIndex) { callerId, calleeId ->
+            methodKeyPairs.add(snapshot.getString(callerId) to snapshot.getString(calleeId))
+        }
+        return methodKeyPairs
+    }
+
+    private fun getSnapshotFile(project: Project): File {
+        // directory-based projects keep the snapshot under .idea, other projects in the IDE system directory
+        val projectDirectory = project.projectFile?.parent
+        val snapshotDirectory =
+                if (projectDirectory != null && projectDirectory.name == Project.DIRECTORY_STORE_FOLDER) {
+                    File(projectDirectory.path, "callGraph")
+                } else {
+                    File(PathManager.getSystemPath(), "call-graph/${project.locationHash}")
+                }
+        return File(snapshotDirectory, "snapshot.bin")
+    }
+
+    private fun resolveMethodKey(methodKey: String, resolvedMethods: MutableMap<String, PsiMethod?>): PsiMethod? {
+        if (!resolvedMethods.containsKey(methodKey)) {
+            val className = methodKey.substringBefore('#')
+            val methodName = methodKey.substringAfter('#').substringBefore('(')
+            resolvedMethods[methodKey] = JavaPsiFacade.getInstance(this.project)
+                    .findClass(className, GlobalSearchScope.allScope(this.project))
+                    ?.findMethodsByName(methodName, false)
+                    ?.firstOrNull { Utils.getMethodKey(it) == methodKey }
+        }
+        return resolvedMethods[methodKey]
+    }
+}
@@ -0,0 +1,94 @@
+package callgraph
+
+import com.intellij.ide.highlighter.JavaFileType
+import com.intellij.openapi.ProjectTopics
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.roots.ModuleRootEvent
+import com.intellij.openapi.roots.ModuleRootListener
+import com.intellij.openapi.vfs.VfsUtilCore
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.openapi.vfs.VirtualFileManager
+import com.intellij.openapi.vfs.newvfs.BulkFileListener
+import com.intellij.openapi.vfs.newvfs.events.VFileCopyEvent
+import com.intellij.openapi.vfs.newvfs.events.VFileDeleteEvent
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent
+import com.intellij.psi.search.FileTypeIndex
+import com.intellij.psi.search.GlobalSearchScope
+import java.util.concurrent.ConcurrentHashMap
+
+// Java source files per scope, enumerated once and then kept up to date from VFS events
+class SourceFileCache(private val project: Project) {
+    private class ScopeFiles(val scope: GlobalSearchScope, val files: MutableSet<VirtualFile>)
+
+    private val scopeFilesByKey = ConcurrentHashMap<String, ScopeFiles>()
+
+    init {
+        project.messageBus.connect(project).subscribe(VirtualFileManager.VFS_CHANGES, object: BulkFileListener {
+            override fun before(events: List<VFileEvent>) {
+                // deleted and moved-away files are only in their scopes before the event
+                events
+                        .filter { it is VFileDeleteEvent || it is VFileMoveEvent }
+                        .mapNotNull { it.file }
+                        .forEach { removeFiles(it) }
+            }
+
+            override fun after(events: List<VFileEvent>) {
+                // a renamed file may have left or joined a scope, so every changed file is placed again
+                events
+                        .filter { it !is VFileDeleteEvent }
+                        .mapNotNull { if (it is VFileCopyEvent) it.findCreatedFile() else it.file }
+                        .forEach {
+                            removeFiles(it)
+                            addFiles(it)
+                        }
+            }
+        })
+
+        // source roots, exclusions and modules decide what each scope contains, so start over when they change
+        project.messageBus.connect(project).subscribe(ProjectTopics.PROJECT_ROOTS, object: ModuleRootListener {
+            override fun rootsChanged(event: ModuleRootEvent) {
+                this@SourceFileCache.scopeFilesByKey.clear()
+            }
+        })
+    }
+
+    // called inside a read action in smart mode, since the first lookup of a scope goes through the file type index
+    fun getFiles(scopeKey: String, createScope: () -> GlobalSearchScope?): Set<VirtualFile> {
+        this.scopeFilesByKey[scopeKey]?.let { return it.files.toSet() }
+        // a module or directory that cannot be found is not cached, so the scope is created again once it is there
+        val scope = createScope() ?: return emptySet()
+        val scopeFiles = this.scopeFilesByKey.getOrPut(scopeKey) {
+            val files = ConcurrentHashMap.newKeySet<VirtualFile>()
+            files.addAll(FileTypeIndex.getFiles(JavaFileType.INSTANCE, scope))
+            ScopeFiles(scope, files)
+        }
+        return scopeFiles.files.toSet()
+    }
+
+    private fun removeFiles(file: VirtualFile) {
+        if (this.scopeFilesByKey.isEmpty()) {
+            return
+        }
+        VfsUtilCore.iterateChildrenRecursively(file, null, { child ->
+            if (!child.isDirectory) {
+                this.scopeFilesByKey.values.forEach { it.files.remove(child) }
+            }
+            true
+        })
+    }
+
+    private fun addFiles(file: VirtualFile) {
+        if (this.scopeFilesByKey.isEmpty()) {
+            return
+        }
+        VfsUtilCore.iterateChildrenRecursively(file, null, { child ->
+            if (!child.isDirectory && child.fileType == JavaFileType.INSTANCE) {
+                this.scopeFilesByKey.values
+                        .filter { it.scope.contains(child) }
+                        .forEach { it.files.add(child) }
+            }
+            true
+        })
+    }
+}
@@ -0,0 +1,88 @@
+package callgraph
+
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.project.Project
+import com.intellij.psi.PsiElement
+import com.intellij.psi.PsiMethod
+import com.intellij.psi.javadoc.PsiDocComment
+import com.intellij.psi.search.GlobalSearchScope
+import com.intellij.psi.search.searches.MethodReferencesSearch
+import com.intellij.psi.util.PsiTreeUtil
+import com.intellij.util.Processor
+
+class UpstreamSearcher(
+        private val project: Project,
+        private val progressIndicator: ProgressIndicator?,
+        private val depthLimit: Int,
+        private val nodeBudget: Int
+) {
+    private val searchScope = GlobalSearchScope.projectScope(this.project)
+
+    fun search(methods: Set<PsiMethod>, onMethodProcessed: () -> Unit): Neighborhood {
+        val dependencies = mutableSetOf<Dependency>()
+        val truncatedMethods = mutableSetOf<PsiMethod>()
+        val seenMethods = methods.toMutableSet()
+        var frontier = methods
+        var depth = 0
+        // expand one hop at a time, only searching the callers of methods found in the previous hop, each method in a
+        // read action of its own, so editing is not held up for the whole search
+        while (frontier.isNotEmpty() && depth < this.depthLimit) {
+            val nextFrontier = mutableSetOf<PsiMethod>()
+            frontier.forEach { callee ->
+                this.progressIndicator?.checkCanceled()
+                onMethodProcessed()
+                val callers = Utils.runSmartReadActionYieldingToWrites(this.project, this.progressIndicator) {
+                    // an edit made between two read actions may have removed the method
+                    if (callee.isValid) getCallers(callee) else emptySet()
+                }
+                callers.forEach { caller ->
+                    // once the budget is used up, only edges between already reached methods are kept
+                    if (seenMethods.contains(caller)) {
+                        dependencies.add(Dependency(caller, callee))
+                    } else if (seenMethods.size < this.nodeBudget) {
+                        seenMethods.add(caller)
+                        nextFrontier.add(caller)
+                        dependencies.add(Dependency(caller, callee))
+                    } else {
+                        truncatedMethods.add(callee)
+                    }
+                }
+            }
+            frontier = nextFrontier
+            depth++
+        }
+        // the frontier left behind by the depth limit, which is only cut off where it has callers not reached yet, so
+        // the search stops at the first of those
+        frontier
+                .filter { callee ->
+                    Utils.runSmartReadActionYieldingToWrites(this.project, this.progressIndicator) {
+                        callee.isValid && hasCallerOutside(callee, seenMethods)
+                    }
+                }
+                .forEach { truncatedMethods.add(it) }
+        return Neighborhood(dependencies, truncatedMethods)
+    }
+
+    private fun hasCallerOutside(method: PsiMethod, methods: Set<PsiMethod>): Boolean {
+        return !MethodReferencesSearch.search(method, this.searchScope, true).forEach(Processor {
+            val caller = getCaller(it.element)
+            caller == null || methods.contains(caller)
+        })
+    }
+
+    private fun getCallers(method: PsiMethod): Set<PsiMethod> {
+        // the word index narrows the search down to the files that mention the method name
+        return MethodReferencesSearch.search(method, this.searchScope, true)
+                .findAll()
+                .mapNotNull { getCaller(it.element) }
+                .toSet()
+    }
+
+    private fun getCaller(reference: PsiElement): PsiMethod? {
+        // skip javadoc links
+        if (PsiTreeUtil.getParentOfType(reference, PsiDocComment::class.java) != null) {
+            return null
+        }
+        return PsiTreeUtil.getParentOfType(reference, PsiMethod::class.java)
+    }
+}
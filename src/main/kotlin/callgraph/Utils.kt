@@ -2,25 +2,27 @@ package callgraph
 
 import com.intellij.openapi.actionSystem.AnActionEvent
 import com.intellij.openapi.actionSystem.CommonDataKeys
-import com.intellij.openapi.application.ApplicationManager
 import com.intellij.openapi.components.ServiceManager
 import com.intellij.openapi.module.Module
 import com.intellij.openapi.module.ModuleManager
 import com.intellij.openapi.progress.ProgressIndicator
 import com.intellij.openapi.progress.ProgressManager
 import com.intellij.openapi.progress.Task
+import com.intellij.openapi.progress.util.ProgressIndicatorBase
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils
+import com.intellij.openapi.progress.util.SensitiveProgressWrapper
+import com.intellij.openapi.project.DumbService
 import com.intellij.openapi.project.Project
-import com.intellij.openapi.project.ProjectManager
-import com.intellij.openapi.roots.ModuleRootManager
-import com.intellij.openapi.roots.ProjectFileIndex
-import com.intellij.openapi.roots.ProjectRootManager
+import com.intellij.openapi.util.Ref
 import com.intellij.openapi.vfs.LocalFileSystem
-import com.intellij.openapi.vfs.VfsUtilCore
 import com.intellij.openapi.vfs.VirtualFile
 import com.intellij.openapi.wm.ToolWindowManager
-import com.intellij.openapi.wm.WindowManager
 import com.intellij.psi.*
-import com.intellij.psi.util.PsiTreeUtil
+import com.intellij.psi.search.GlobalSearchScope
+import com.intellij.psi.search.GlobalSearchScopesCore
+import com.intellij.psi.util.TypeConversionUtil
+import gnu.trove.TLongHashSet
+import gnu.trove.TLongIntHashMap
 import guru.nidi.graphviz.attribute.RankDir
 import guru.nidi.graphviz.engine.Format
 import guru.nidi.graphviz.engine.Graphviz
@@ -30,12 +32,9 @@ import java.awt.geom.Point2D
 
 object Utils {
     private const val normalizedGridSize = 0.1f
-
-    fun getActiveProject(): Project? {
-        return ProjectManager.getInstance()
-                .openProjects
-                .firstOrNull { WindowManager.getInstance().suggestParentWindow(it)?.isActive ?: false }
-    }
+    private const val projectScopeKey = "project"
+    private const val fnvOffsetBasis = -0x340d631b7bdddcdbL
+    private const val fnvPrime = 0x100000001b3L
 
     fun getActiveModules(project: Project): List<Module> {
         return ModuleManager.getInstance(project).modules.toList()
@@ -44,30 +43,27 @@ object Utils {
     fun getDependencyView(
             canvasConfig: CanvasConfig,
             methods: Set<PsiMethod>,
-            dependencies: Set<Dependency>
+            dependencyIndex: DependencyIndex
     ): Set<Dependency> {
+        // edges are matched by method id, so only the edges in view are turned back into dependencies
+        val methodIds = dependencyIndex.getMethodIds(methods)
         return when (canvasConfig.buildType) {
             CanvasConfig.BuildType.WHOLE_PROJECT_WITH_TEST_LIMITED,
             CanvasConfig.BuildType.WHOLE_PROJECT_WITHOUT_TEST_LIMITED,
             CanvasConfig.BuildType.MODULE_LIMITED,
-            CanvasConfig.BuildType.DIRECTORY_LIMITED -> dependencies
-                    .filter { methods.contains(it.caller) && methods.contains(it.callee) }
-                    .toSet()
+            CanvasConfig.BuildType.DIRECTORY_LIMITED -> dependencyIndex.getDependencies { callerId, calleeId ->
+                methodIds.contains(callerId) && methodIds.contains(calleeId)
+            }
             CanvasConfig.BuildType.WHOLE_PROJECT_WITH_TEST,
             CanvasConfig.BuildType.WHOLE_PROJECT_WITHOUT_TEST,
             CanvasConfig.BuildType.MODULE,
-            CanvasConfig.BuildType.DIRECTORY -> dependencies
-                    .filter { methods.contains(it.caller) || methods.contains(it.callee) }
-                    .toSet()
-            CanvasConfig.BuildType.UPSTREAM ->
-                getNestedDependencyView(dependencies, methods, mutableSetOf(), true)
-            CanvasConfig.BuildType.DOWNSTREAM ->
-                getNestedDependencyView(dependencies, methods, mutableSetOf(), false)
-            CanvasConfig.BuildType.UPSTREAM_DOWNSTREAM -> {
-                val upstream = getNestedDependencyView(dependencies, methods, mutableSetOf(), true)
-                val downstream = getNestedDependencyView(dependencies, methods, mutableSetOf(), false)
-                upstream.union(downstream)
+            CanvasConfig.BuildType.DIRECTORY -> dependencyIndex.getDependencies { callerId, calleeId ->
+                methodIds.contains(callerId) || methodIds.contains(calleeId)
             }
+            // focused views are traversed by the canvas builder
+            CanvasConfig.BuildType.UPSTREAM,
+            CanvasConfig.BuildType.DOWNSTREAM,
+            CanvasConfig.BuildType.UPSTREAM_DOWNSTREAM -> emptySet()
         }
     }
 
@@ -97,21 +93,62 @@ object Utils {
                             emptyList<PsiClass>()
                         }
                     }
+                    .flatMap { getClassesWithNested(it) } // nested classes get their methods indexed as well
                     .flatMap { it.methods.toList() } // get all methods
                     .toSet()
 
-    fun getDependenciesFromMethod(method: PsiMethod) =
-            PsiTreeUtil
-                    .findChildrenOfType(method, PsiIdentifier::class.java)
-                    .mapNotNull { it.context }
-                    .flatMap { it.references.toList() }
-                    .map { it.resolve() }
-                    .filter { it is PsiMethod }
-                    .map { Dependency(method, it as PsiMethod) }
+    private fun getClassesWithNested(psiClass: PsiClass): List<PsiClass> =
+            listOf(psiClass) + psiClass.innerClasses.flatMap { getClassesWithNested(it) }
+
+    fun getDependenciesFromMethod(method: PsiMethod, onUnresolvedCall: () -> Unit = {}): List<Dependency> {
+        ProgressManager.checkCanceled()
+        return CallSiteExtractor.getCallees(method, onUnresolvedCall).map { Dependency(method, it) }
+    }
+
+    // Runs the computation in a read action that gives way to write actions: as soon as one is requested, the
+    // computation is cancelled, and it is started over once the write action is done. Never call it inside a read
+    // action, since the write action could not go through until that one ends.
+    fun <T> runReadActionYieldingToWrites(progressIndicator: ProgressIndicator?, computation: () -> T): T {
+        val result = Ref<T>()
+        while (true) {
+            // a write action cancels the indicator of the attempt it interrupts, so each attempt gets its own one,
+            // which still follows the cancellation of the build's indicator
+            val attemptIndicator = progressIndicator?.let { SensitiveProgressWrapper(it) } ?: ProgressIndicatorBase()
+            val isDone = ProgressIndicatorUtils.runInReadActionWithWriteActionPriority(
+                    Runnable { result.set(computation()) },
+                    attemptIndicator
+            )
+            if (isDone) {
+                return result.get()
+            }
+            // only a cancelled build ends the retries, an attempt given up for a write action is started over
+            progressIndicator?.checkCanceled()
+            ProgressIndicatorUtils.yieldToPendingWriteActions()
+        }
+    }
+
+    // Same as above, for computations that need the indices: each attempt waits for the project to be smart first
+    fun <T> runSmartReadActionYieldingToWrites(
+            project: Project,
+            progressIndicator: ProgressIndicator?,
+            computation: () -> T
+    ): T {
+        val dumbService = DumbService.getInstance(project)
+        while (true) {
+            dumbService.waitForSmartMode()
+            // indexing may start again between the wait and the read action, then the attempt is started over
+            val result = this.runReadActionYieldingToWrites(progressIndicator) {
+                if (dumbService.isDumb) null else Ref(computation())
+            }
+            if (result != null) {
+                return result.get()
+            }
+        }
+    }
 
     fun layout(graph: Graph) {
         // get connected components from the graph, and render each part separately
-        val subGraphBlueprints = graph.connectedComponents
+        val subGraphBlueprints = graph.getConnectedComponents()
                 .map { this.getLayoutFromGraphViz(it) }
                 .map { this.normalizeBlueprintGridSize(it) }
                 .toList()
@@ -122,45 +159,117 @@ object Utils {
         applyLayoutBlueprintToGraph(mergedBlueprint, graph)
     }
 
-    fun runBackgroundTask(project: Project, runnable: Runnable) {
+    // places nodes added to an already laid out graph next to a caller or callee that already has a position, one
+    // grid step to its right or left, so the rest of the layout stays where it is
+    fun placeNodes(graph: Graph, nodes: List<Node>) {
+        if (nodes.isEmpty()) {
+            return
+        }
+        val placedNodeIds = TLongHashSet()
+        graph.getNodes().forEach { placedNodeIds.add(it.id) }
+        nodes.forEach { placedNodeIds.remove(it.id) }
+        // the canvas builder sends a full layout instead of a delta when no displayed node is left, so there always
+        // are placed nodes to go by
+        val placedNodes = graph.getNodes().filter { placedNodeIds.contains(it.id) }
+        if (placedNodes.isEmpty()) {
+            return
+        }
+        // the view coordinates are the raw layout scaled to the viewport, so new nodes are mapped the same way
+        val rawPoints = placedNodes.map { it.rawLayoutPoint }
+        val rawMin = rawPoints.reduce { a, b -> Point2D.Float(minOf(a.x, b.x), minOf(a.y, b.y)) }
+        val rawMax = rawPoints.reduce { a, b -> Point2D.Float(maxOf(a.x, b.x), maxOf(a.y, b.y)) }
+        val points = placedNodes.map { it.point }
+        val pointMin = points.reduce { a, b -> Point2D.Float(minOf(a.x, b.x), minOf(a.y, b.y)) }
+        val pointMax = points.reduce { a, b -> Point2D.Float(maxOf(a.x, b.x), maxOf(a.y, b.y)) }
+        val xScale = if (rawMax.x > rawMin.x) (pointMax.x - pointMin.x) / (rawMax.x - rawMin.x) else 1f
+        val yScale = if (rawMax.y > rawMin.y) (pointMax.y - pointMin.y) / (rawMax.y - rawMin.y) else 1f
+        // nodes placed next to the same neighbor are stacked below one another
+        val stackHeights = TLongIntHashMap()
+        var unconnectedCount = 0
+        nodes.forEach { node ->
+            val caller = node.inEdges.map { it.sourceNode }.firstOrNull { placedNodeIds.contains(it.id) }
+            val callee = node.outEdges.map { it.targetNode }.firstOrNull { placedNodeIds.contains(it.id) }
+            val neighbor = caller ?: callee
+            if (neighbor == null) {
+                // a column to the right of the graph, for nodes not connected to anything placed yet
+                node.rawLayoutPoint.setLocation(
+                        rawMax.x + normalizedGridSize,
+                        rawMin.y + normalizedGridSize * unconnectedCount++
+                )
+            } else {
+                // callees are laid out to the right of their callers
+                val xOffset = if (neighbor === caller) normalizedGridSize else -normalizedGridSize
+                val stackHeight = stackHeights.adjustOrPutValue(neighbor.id, 1, 0)
+                node.rawLayoutPoint.setLocation(
+                        neighbor.rawLayoutPoint.x + xOffset,
+                        neighbor.rawLayoutPoint.y + normalizedGridSize * stackHeight
+                )
+            }
+            node.point.setLocation(
+                    pointMin.x + (node.rawLayoutPoint.x - rawMin.x) * xScale,
+                    pointMin.y + (node.rawLayoutPoint.y - rawMin.y) * yScale
+            )
+            placedNodeIds.add(node.id)
+        }
+    }
+
+    fun runBackgroundTask(project: Project, task: (ProgressIndicator) -> Unit, onTaskFinished: () -> Unit) {
         ProgressManager.getInstance()
                 .run(object: Task.Backgroundable(project, "Call Graph") {
                     override fun run(progressIndicator: ProgressIndicator) {
-                        ApplicationManager
-                                .getApplication()
-                                .runReadAction(runnable)
+                        task(progressIndicator)
+                    }
+
+                    // called on the EDT, whether the task succeeded, was cancelled or failed
+                    override fun onFinished() {
+                        onTaskFinished()
                     }
                 })
     }
 
-    fun getMethodPackageName(method: PsiMethod): String {
-        // get package name
-        val psiJavaFile = method.containingFile as PsiJavaFile
-        val packageName = psiJavaFile.packageStatement?.packageName ?: ""
-        // get class name
-        val className = method.containingClass?.qualifiedName ?: ""
-        return if (packageName.isBlank() || className.startsWith(packageName)) className else "$packageName.$className"
+    // the parameter names as they follow the method name in its signature label
+    fun getMethodParameterList(method: PsiMethod): String {
+        val parameterNames = method.parameterList.parameters.map { it.name }.joinToString()
+        return if (parameterNames.isEmpty()) "" else "($parameterNames)"
     }
 
-    fun getMethodFilePath(method: PsiMethod): String? {
-        val file = method.containingFile.virtualFile
-        val sourceRoot = getSourceRoot(file)
-        return if (sourceRoot == null) null else VfsUtilCore.getRelativePath(file, sourceRoot)
+    fun getMethodKey(method: PsiMethod): String? {
+        // class name plus erased signature, which identifies the method across sessions
+        val className = method.containingClass?.qualifiedName ?: return null
+        val parameterTypes = method.parameterList.parameters
+                .joinToString(",") { TypeConversionUtil.erasure(it.type).canonicalText }
+        return "$className#${method.name}($parameterTypes)"
     }
 
-    fun getSourceRoot(file: VirtualFile): VirtualFile? {
-        val project = getActiveProject()
-
-        return if (project == null) null else ProjectFileIndex.SERVICE.getInstance(project).getContentRootForFile(file)
+    // 64-bit FNV-1a hash of the file path, class name and erased signature of the method, stable across PSI reloads
+    // and sessions. The file path tells apart classes of the same name in different modules. Methods of local and
+    // anonymous classes have no class name, and fall back to their position in the file. The parts are hashed one
+    // after the other, without building a key out of them.
+    fun getMethodFingerprint(method: PsiMethod): Long {
+        var hash = hashChars(fnvOffsetBasis, method.containingFile?.virtualFile?.path ?: "")
+        hash = hashChar(hash, ':')
+        val className = method.containingClass?.qualifiedName
+        hash = if (className == null) (hash xor method.textOffset.toLong()) * fnvPrime else hashChars(hash, className)
+        hash = hashChar(hash, '#')
+        hash = hashChars(hash, method.name)
+        method.parameterList.parameters.forEach {
+            hash = hashChar(hash, ',')
+            hash = hashChars(hash, TypeConversionUtil.erasure(it.type).canonicalText)
+        }
+        return hash
     }
 
-    fun getMethodSignature(method: PsiMethod): String {
-        val parameterNames = method.parameterList.parameters.map { it.name }.joinToString()
-        val parameters = if (parameterNames.isEmpty()) "" else "($parameterNames)"
-        return "${method.name}$parameters"
+    private fun hashChars(hash: Long, chars: CharSequence): Long {
+        var result = hash
+        for (index in 0 until chars.length) {
+            result = hashChar(result, chars[index])
+        }
+        return result
     }
 
-    fun fitLayoutToViewport(blueprint: Map<String, Point2D.Float>): Map<String, Point2D.Float> {
+    private fun hashChar(hash: Long, char: Char) = (hash xor char.toLong()) * fnvPrime
+
+    fun fitLayoutToViewport(blueprint: Map<Long, Point2D.Float>): Map<Long, Point2D.Float> {
         val maxPoint = blueprint.values.reduce { a, b -> Point2D.Float(maxOf(a.x, b.x), maxOf(a.y, b.y)) }
         val minPoint = blueprint.values.reduce { a, b -> Point2D.Float(minOf(a.x, b.x), minOf(a.y, b.y)) }
         val graphSize = Point2D.Float(maxPoint.x - minPoint.x, maxPoint.y - minPoint.y)
@@ -196,83 +305,62 @@ object Utils {
         anActionEvent.presentation.isEnabledAndVisible = project != null && psiElement is PsiMethod
     }
 
-    fun isPublic(method: PsiMethod) = method.modifierList.hasModifierProperty(PsiModifier.PUBLIC)
-
-    fun isProtected(method: PsiMethod) = method.modifierList.hasModifierProperty(PsiModifier.PROTECTED)
-
-    fun isPackageLocal(method: PsiMethod) = method.modifierList.hasModifierProperty(PsiModifier.PACKAGE_LOCAL)
-
-    fun isPrivate(method: PsiMethod) = method.modifierList.hasModifierProperty(PsiModifier.PRIVATE)
-
-    fun getAllSourceCodeFiles(project: Project): Set<PsiFile> {
-        val sourceCodeRoots = getAllSourceCodeRoots(project)
-        return getSourceCodeFiles(project, sourceCodeRoots)
+    fun getSourceCodeFiles(canvasConfig: CanvasConfig): Set<PsiFile> {
+        // only the files in scope are loaded as PSI
+        val psiManager = PsiManager.getInstance(canvasConfig.project)
+        val sourceFileCache = ServiceManager.getService(canvasConfig.project, SourceFileCache::class.java)
+        val files = sourceFileCache.getFiles(getSourceCodeScopeKey(canvasConfig)) { getSourceCodeScope(canvasConfig) }
+        return files.mapNotNull { psiManager.findFile(it) }.toSet()
     }
 
-    fun getSourceCodeFiles(project: Project, sourceCodeRoots: Set<VirtualFile>) =
-            sourceCodeRoots
-                    .flatMap { contentSourceRoot ->
-                        val childrenVirtualFiles = mutableListOf<VirtualFile>()
-                        VfsUtilCore.iterateChildrenRecursively(contentSourceRoot, null, {
-                            if (it.isValid && !it.isDirectory) {
-                                val extension = it.extension
-                                if (extension.equals("java")) {
-                                    childrenVirtualFiles.add(it)
-                                }
-                            }
-                            true
-                        })
-                        childrenVirtualFiles
-                    }
-                    .mapNotNull { PsiManager.getInstance(project).findFile(it) }
-                    .toSet()
+    fun getAllSourceCodeFiles(project: Project): Set<VirtualFile> =
+            ServiceManager.getService(project, SourceFileCache::class.java)
+                    .getFiles(projectScopeKey) { GlobalSearchScope.projectScope(project) }
 
-    fun applyLayoutBlueprintToGraph(blueprint: Map<String, Point2D.Float>, graph: Graph) {
+    fun applyLayoutBlueprintToGraph(blueprint: Map<Long, Point2D.Float>, graph: Graph) {
         blueprint.forEach { (nodeId, point) -> graph.getNode(nodeId).point.setLocation(point) }
     }
 
-    fun getSourceCodeRoots(canvasConfig: CanvasConfig) =
+    private fun getSourceCodeScopeKey(canvasConfig: CanvasConfig) =
             when (canvasConfig.buildType) {
                 CanvasConfig.BuildType.WHOLE_PROJECT_WITH_TEST_LIMITED,
-                CanvasConfig.BuildType.WHOLE_PROJECT_WITH_TEST ->
-                    getAllSourceCodeRoots(canvasConfig.project)
+                CanvasConfig.BuildType.WHOLE_PROJECT_WITH_TEST -> projectScopeKey
                 CanvasConfig.BuildType.WHOLE_PROJECT_WITHOUT_TEST_LIMITED,
-                CanvasConfig.BuildType.WHOLE_PROJECT_WITHOUT_TEST ->
-                    getActiveModules(canvasConfig.project)
-                            .flatMap { ModuleRootManager.getInstance(it).getSourceRoots(false).toSet() }
-                            .toSet()
-                CanvasConfig.BuildType.MODULE_LIMITED, CanvasConfig.BuildType.MODULE ->
-                    getSelectedModules(canvasConfig.project, canvasConfig.selectedModuleName)
-                            .flatMap { ModuleRootManager.getInstance(it).sourceRoots.toSet() }
-                            .toSet()
+                CanvasConfig.BuildType.WHOLE_PROJECT_WITHOUT_TEST -> "production"
+                CanvasConfig.BuildType.MODULE_LIMITED,
+                CanvasConfig.BuildType.MODULE -> "module:${canvasConfig.selectedModuleName}"
                 CanvasConfig.BuildType.DIRECTORY_LIMITED,
-                CanvasConfig.BuildType.DIRECTORY -> {
-                    val directoryPath = canvasConfig.selectedDirectoryPath
-                    listOfNotNull(LocalFileSystem.getInstance().findFileByPath(directoryPath)).toSet()
-                }
-                else -> emptySet()
+                CanvasConfig.BuildType.DIRECTORY -> "directory:${canvasConfig.selectedDirectoryPath}"
+                else -> "empty"
             }
 
-    private fun getNestedDependencyView(
-            dependencies: Set<Dependency>,
-            methods: Set<PsiMethod>,
-            seenMethods: MutableSet<PsiMethod>,
-            isUpstream: Boolean
-    ): Set<Dependency> {
-        if (methods.isEmpty()) {
-            return emptySet()
+    // null when the selected module or directory cannot be found
+    private fun getSourceCodeScope(canvasConfig: CanvasConfig): GlobalSearchScope? {
+        // project scopes leave out excluded folders, build output and libraries
+        val project = canvasConfig.project
+        return when (canvasConfig.buildType) {
+            CanvasConfig.BuildType.WHOLE_PROJECT_WITH_TEST_LIMITED,
+            CanvasConfig.BuildType.WHOLE_PROJECT_WITH_TEST ->
+                GlobalSearchScope.projectScope(project)
+            CanvasConfig.BuildType.WHOLE_PROJECT_WITHOUT_TEST_LIMITED,
+            CanvasConfig.BuildType.WHOLE_PROJECT_WITHOUT_TEST ->
+                GlobalSearchScopesCore.projectProductionScope(project)
+            CanvasConfig.BuildType.MODULE_LIMITED, CanvasConfig.BuildType.MODULE -> {
+                val moduleScopes = getSelectedModules(project, canvasConfig.selectedModuleName)
+                        .map { GlobalSearchScope.moduleScope(it) }
+                if (moduleScopes.isEmpty()) null else GlobalSearchScope.union(moduleScopes.toTypedArray())
+            }
+            CanvasConfig.BuildType.DIRECTORY_LIMITED, CanvasConfig.BuildType.DIRECTORY -> {
+                // the directory defaults to the project base path, which holds the build output as well
+                LocalFileSystem.getInstance().findFileByPath(canvasConfig.selectedDirectoryPath)
+                        ?.let { GlobalSearchScopesCore.directoryScope(project, it, true) }
+                        ?.intersectWith(GlobalSearchScope.projectScope(project))
+            }
+            else -> GlobalSearchScope.EMPTY_SCOPE
         }
-        val directPairs = dependencies.filter { methods.contains(if (isUpstream) it.callee else it.caller) }.toSet()
-        val nextBatchMethods = directPairs
-                .map { if (isUpstream) it.caller else it.callee }
-                .filter { !seenMethods.contains(it) }
-                .toSet()
-        seenMethods.addAll(nextBatchMethods)
-        val nestedPairs = getNestedDependencyView(dependencies, nextBatchMethods, seenMethods, isUpstream)
-        return directPairs + nestedPairs
     }
 
-    private fun getLayoutFromGraphViz(graph: Graph): Map<String, Point2D.Float> {
+    private fun getLayoutFromGraphViz(graph: Graph): Map<Long, Point2D.Float> {
         // if graph only has one node, just set its coordinate to (0.5, 0.5), no need to call GraphViz
         if (graph.getNodes().size == 1) {
             return graph.getNodes()
@@ -285,13 +373,13 @@ object Utils {
                 .graphAttrs()
                 .add(RankDir.LEFT_TO_RIGHT)
         graph.getNodes()
-                .sortedBy { it.method.name }
+                .sortedBy { it.name }
                 .forEach { node ->
-                    val gvNode = mutNode(node.id)
-                    node.outEdges.values
+                    val gvNode = mutNode(getGraphVizNodeName(node.id))
+                    node.outEdges
                             .map { it.targetNode }
-                            .sortedBy { it.method.name }
-                            .forEach { gvNode.addLink(it.id) }
+                            .sortedBy { it.name }
+                            .forEach { gvNode.addLink(getGraphVizNodeName(it.id)) }
                     gvGraph.add(gvNode)
                 }
 
@@ -301,11 +389,16 @@ object Utils {
         return layoutRawText.split("\n")
                 .filter { it.startsWith("node") }
                 .map { it.split(" ") }
-                .map { it[1] to Point2D.Float(it[2].toFloat(), it[3].toFloat()) } // (x, y)
+                .map { getGraphVizNodeId(it[1]) to Point2D.Float(it[2].toFloat(), it[3].toFloat()) } // (x, y)
                 .toMap()
     }
 
-    private fun normalizeBlueprintGridSize(blueprint: Map<String, Point2D.Float>): Map<String, Point2D.Float> {
+    // GraphViz node names are hex fingerprints, prefixed so that they are never read as numbers
+    private fun getGraphVizNodeName(nodeId: Long) = "n${java.lang.Long.toHexString(nodeId)}"
+
+    private fun getGraphVizNodeId(nodeName: String) = java.lang.Long.parseUnsignedLong(nodeName.substring(1), 16)
+
+    private fun normalizeBlueprintGridSize(blueprint: Map<Long, Point2D.Float>): Map<Long, Point2D.Float> {
         if (blueprint.size < 2) {
             return blueprint
         }
@@ -316,7 +409,7 @@ object Utils {
         return blueprint.mapValues { (_, point) -> Point2D.Float(point.x * xFactor, point.y * yFactor) }
     }
 
-    private fun getGridSize(blueprint: Map<String, Point2D.Float>): Point2D.Float {
+    private fun getGridSize(blueprint: Map<Long, Point2D.Float>): Point2D.Float {
         val precisionFactor = 1000
         val xUniqueValues = blueprint.values.map { Math.round(precisionFactor * it.x) }.toSet()
         val yUniqueValues = blueprint.values.map { Math.round(precisionFactor * it.y) }.toSet()
@@ -332,7 +425,7 @@ object Utils {
         return if (elements.size < 2 || max == null || min == null) 0f else (max - min) / (elements.size - 1).toFloat()
     }
 
-    private fun mergeNormalizedLayouts(blueprints: List<Map<String, Point2D.Float>>): Map<String, Point2D.Float> {
+    private fun mergeNormalizedLayouts(blueprints: List<Map<Long, Point2D.Float>>): Map<Long, Point2D.Float> {
         if (blueprints.isEmpty()) {
             return emptyMap()
         }
@@ -371,13 +464,11 @@ object Utils {
                 .reduce { blueprintA, blueprintB -> blueprintA + blueprintB }
     }
 
-    private fun applyRawLayoutBlueprintToGraph(blueprint: Map<String, Point2D.Float>, graph: Graph) {
+    private fun applyRawLayoutBlueprintToGraph(blueprint: Map<Long, Point2D.Float>, graph: Graph) {
         blueprint.forEach { (nodeId, point) -> graph.getNode(nodeId).rawLayoutPoint.setLocation(point) }
     }
 
     private fun getSelectedModules(project: Project, selectedModuleName: String): Set<Module> {
         return getActiveModules(project).filter { it.name == selectedModuleName }.toSet()
     }
-
-    private fun getAllSourceCodeRoots(project: Project) = ProjectRootManager.getInstance(project).contentRoots.toSet()
 }